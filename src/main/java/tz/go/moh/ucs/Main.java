@@ -2,35 +2,59 @@ package tz.go.moh.ucs;
 
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
+import okhttp3.Response;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import tz.go.moh.ucs.domain.Location;
 import tz.go.moh.ucs.service.HfrService;
+import tz.go.moh.ucs.util.CircuitBreaker;
 import tz.go.moh.ucs.util.FetchLocationsHelper;
+import tz.go.moh.ucs.util.HttpStatusException;
+import tz.go.moh.ucs.util.HttpTransport;
 import tz.go.moh.ucs.util.HttpUtil;
+import tz.go.moh.ucs.util.LocationCreationScheduler;
+import tz.go.moh.ucs.util.LocationRepository;
+import tz.go.moh.ucs.util.PlanExecutor;
+import tz.go.moh.ucs.util.ReconciliationMemo;
+import tz.go.moh.ucs.util.ReconciliationPlan;
+import tz.go.moh.ucs.util.ReconciliationPlanner;
+import tz.go.moh.ucs.util.RetryPolicy;
+import tz.go.moh.ucs.util.SyncMetrics;
 
-import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.Reader;
 import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static tz.go.moh.ucs.service.OpenmrsService.JOURNAL;
 import static tz.go.moh.ucs.service.OpenmrsService.OPENMRS_BASE_URL;
 import static tz.go.moh.ucs.util.CapitalizeUtil.capitalizeWords;
 import static tz.go.moh.ucs.util.OpenMrsCallsUtils.*;
 import static tz.go.moh.ucs.util.Utils.*;
 
 public class Main {
-    // Caches for quick lookup by location UUID and Code
-    public static final Map<String, Location> locationCache = new HashMap<>();
-    public static final Map<String, Location> codeCache = new HashMap<>();
+    // The locations of this run, for quick lookup by uuid, code and parent; safe for the LOCATION_SCHEDULER threads
+    public static LocationRepository repository = new LocationRepository();
     public static final Logger LOGGER = Logger.getLogger(Main.class.getName());
     public static String CODE_LOCATION_ATTRIBUTE_UUID;
     public static String HFR_CODE_LOCATION_ATTRIBUTE_UUID;
-    public static List<Location> allLocations = new ArrayList<>();
     public static String HAMLET_RESOURCE_FILE_NAME;
+    private static final Config HFR_RETRY_CONFIG = ConfigFactory.load().getConfig("hfr.retry");
+    // Shared by both HFR feeds: once HFR keeps failing, neither feed hammers it further
+    public static final CircuitBreaker HFR_CIRCUIT_BREAKER = new CircuitBreaker("hfr",
+            HFR_RETRY_CONFIG.getInt("circuit_breaker_failure_threshold"), HFR_RETRY_CONFIG.getLong("circuit_breaker_open_ms"));
+    // Reconciles and creates the locations of HFR records and hamlet rows concurrently, parents before children;
+    // replaced by a planning scheduler when sync.mode is "plan"
+    public static LocationCreationScheduler LOCATION_SCHEDULER =
+            new LocationCreationScheduler(ConfigFactory.load().getInt("openmrs.create_concurrency"));
 
     public static void main(String[] args) {
         Config config = ConfigFactory.load();
@@ -38,81 +62,160 @@ public class Main {
         HFR_CODE_LOCATION_ATTRIBUTE_UUID = config.getString("openmrs.hfr_code_location_attribute_uuid");
         HAMLET_RESOURCE_FILE_NAME = config.getString("hamlet.resource_file_name");
 
-        allLocations = new FetchLocationsHelper().getAllOpenMRSlocations();
+        String mode = config.getString("sync.mode");
+        Path planFile = Paths.get(config.getString("sync.plan_file"));
+        if (!mode.equals("sync") && !mode.equals("plan") && !mode.equals("apply")) {
+            throw new IllegalArgumentException("Unknown sync.mode \"" + mode + "\", expected sync, plan or apply");
+        }
 
-        // Initialize caches
-        for (Location loc : allLocations) {
-            if (loc != null && loc.getLocationId() != null) {
-                locationCache.put(loc.getLocationId().toLowerCase(), loc);
-                if (loc.getAttributes() != null && loc.getAttributes().get("Code") != null && !loc.hasTag("Facility")) {
-                    codeCache.put(((String) loc.getAttributes().get("Code")).toLowerCase(), loc);
-                } else if (loc.getAttributes() != null && loc.getAttributes().get("HFR Code") != null && loc.hasTag("Facility")) {
-                    codeCache.put(((String) loc.getAttributes().get("HFR Code")).toLowerCase(), loc);
-                }
-            }
+        initializeCaches(new FetchLocationsHelper().getLocations());
+        LOGGER.info("Fetched " + repository.size() + " locations.");
+        if (mode.equals("apply")) {
+            applyPlan(planFile);
+        } else if (mode.equals("plan")) {
+            planReconciliation(planFile);
+        } else {
+            fetchHfrData(1);
+            fetchHfrAdminHierarchyData(1);
+            importHamletLocationsFromCSV(HAMLET_RESOURCE_FILE_NAME);
+        }
+
+        LOGGER.info("COMPLETED SYNCHRONIZATION OF HFR LOCATIONS");
+        // A plan run wrote nothing, so the warm-start snapshot and the journal stay as the last writing run left them
+        if (!mode.equals("plan")) {
+            FetchLocationsHelper.saveSnapshot(repository.getAll());
+            // Everything journaled is part of the snapshot now
+            JOURNAL.reset();
         }
-        LOGGER.info("Fetched " + allLocations.size() + " locations.");
+        ReconciliationMemo.logHitRate();
+        HttpTransport.recordPoolMetrics();
+        SyncMetrics.logSummary();
+    }
+
+    /**
+     * Reconciles HFR and the hamlet CSV against the downloaded locations without writing to OpenMRS, and saves the
+     * operations a sync would make to the plan file. The HFR checkpoint and page validators are left untouched.
+     */
+    public static ReconciliationPlan planReconciliation(Path planFile) {
+        ReconciliationPlanner planner = new ReconciliationPlanner(repository);
+        // One thread keeps the order of the plan the same from run to run
+        LOCATION_SCHEDULER = new LocationCreationScheduler(1, new ReconciliationMemo(planner));
+        HfrService.RECORD_PROGRESS = false;
+
         fetchHfrData(1);
         fetchHfrAdminHierarchyData(1);
         importHamletLocationsFromCSV(HAMLET_RESOURCE_FILE_NAME);
 
-        LOGGER.info("COMPLETED SYNCHRONIZATION OF HFR LOCATIONS");
+        ReconciliationPlan plan = planner.getPlan();
+        LOGGER.info("Planned " + plan.size() + " operations: " + plan.summary());
+        try {
+            plan.save(planFile, OPENMRS_BASE_URL);
+            LOGGER.info("Saved the reconciliation plan to " + planFile);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not save the reconciliation plan to " + planFile, e);
+        }
+        return plan;
     }
 
     /**
-     * Fetches HFR data with a maximum number of retry attempts.
+     * Applies the operations of a plan saved by a plan run.
      */
-    public static void fetchHfrData(int currentPage) {
-        int maxAttempts = 200;
-        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
-            try {
-                LOGGER.info("Fetching HFR data for page " + currentPage + ", attempt " + attempt);
-                HfrService.fetchHealthFacilityData(currentPage);
-                break;  // success, break out of the loop
-            } catch (Exception e) {
-                LOGGER.log(Level.SEVERE, "Error fetching HFR data for page " + currentPage + " (attempt " + attempt + ")", e);
-                if (attempt == maxAttempts) {
-                    LOGGER.severe("Max attempts reached for page " + currentPage + ". Aborting fetch.");
-                }
-            }
+    public static void applyPlan(Path planFile) {
+        try {
+            ReconciliationPlan plan = ReconciliationPlan.load(planFile, OPENMRS_BASE_URL);
+            LOGGER.info("Applying " + plan.size() + " planned operations: " + plan.summary());
+            new PlanExecutor(repository).execute(plan);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not read the reconciliation plan " + planFile, e);
         }
     }
 
     /**
-     * Fetches HFR data with a maximum number of retry attempts.
+     * Puts the downloaded locations into the {@link #repository}, linked into a single hierarchy.
+     */
+    public static void initializeCaches(List<Location> locations) {
+        repository.addAll(locations);
+    }
+
+    /**
+     * Fetches HFR data with a maximum number of retry attempts, backing off between them.
+     * Each attempt resumes at the first page not yet recorded in the HFR checkpoint.
+     */
+    public static void fetchHfrData(int currentPage) {
+        fetchHfrFeed("hfr.health_facilities", 200, HfrService.HEALTH_FACILITY_FEED, currentPage, HfrService::fetchHealthFacilityData);
+    }
+
+    /**
+     * Fetches HFR data with a maximum number of retry attempts, backing off between them.
+     * Each attempt resumes at the first page not yet recorded in the HFR checkpoint.
      */
     public static void fetchHfrAdminHierarchyData(int currentPage) {
-        int maxAttempts = 3;
-        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
-            try {
-                LOGGER.info("Fetching HFR data for page " + currentPage + ", attempt " + attempt);
-                HfrService.fetchAdminHierarchData(currentPage);
-                break;  // success, break out of the loop
-            } catch (Exception e) {
-                LOGGER.log(Level.SEVERE, "Error fetching HFR data for page " + currentPage + " (attempt " + attempt + ")", e);
-                if (attempt == maxAttempts) {
-                    LOGGER.severe("Max attempts reached for page " + currentPage + ". Aborting fetch.");
+        fetchHfrFeed("hfr.admin_hierarchy", 3, HfrService.ADMIN_HIERARCHY_FEED, currentPage, HfrService::fetchAdminHierarchData);
+    }
+
+    private interface HfrFeedFetch {
+        void fetch(int page) throws Exception;
+    }
+
+    private static void fetchHfrFeed(String name, int maxAttempts, String feed, int currentPage, HfrFeedFetch fetch) {
+        RetryPolicy retryPolicy = new RetryPolicy(name, maxAttempts, HFR_RETRY_CONFIG.getLong("base_delay_ms"),
+                HFR_RETRY_CONFIG.getLong("max_delay_ms"), HFR_CIRCUIT_BREAKER);
+        try {
+            retryPolicy.execute(attempt -> {
+                int page = startPage(feed, currentPage);
+                LOGGER.info("Fetching HFR data for page " + page + ", attempt " + attempt);
+                try {
+                    fetch.fetch(page);
+                } catch (Exception e) {
+                    LOGGER.log(Level.SEVERE, "Error fetching HFR data for page " + page + " (attempt " + attempt + ")", e);
+                    throw e;
                 }
+            });
+        } catch (CircuitBreaker.OpenException e) {
+            LOGGER.severe(e.getMessage() + ". Aborting fetch of " + feed + ".");
+        } catch (HttpStatusException e) {
+            if (!e.isRetryable()) {
+                LOGGER.severe("HFR rejected the request with HTTP " + e.getStatusCode() + ". Aborting fetch.");
+            } else {
+                LOGGER.severe("Max attempts reached for page " + startPage(feed, currentPage) + ". Aborting fetch.");
             }
+        } catch (Exception e) {
+            LOGGER.severe("Max attempts reached for page " + startPage(feed, currentPage) + ". Aborting fetch.");
         }
     }
 
+    /**
+     * Returns the page a fetch of the feed starts from: the first unfinished page from the HFR checkpoint, or the
+     * requested page when progress is not recorded.
+     */
+    private static int startPage(String feed, int requestedPage) {
+        return HfrService.RECORD_PROGRESS ? HfrService.CHECKPOINT.nextPage(feed, requestedPage) : requestedPage;
+    }
 
     /**
      * Process HFR Admin Hierarchy
      */
     public static void processAdminHierarchyData(JSONArray response) {
         for (int i = 0; i < response.length(); i++) {
-            JSONObject facilityJson = response.getJSONObject(i);
-            try {
-                Location countryLoc = ensureLocationExists(null, capitalizeWords(facilityJson.getString("country")), "TZ", "Country");
-                Location zoneLoc = ensureLocationExists(countryLoc, capitalizeWords(facilityJson.getString("zone")), facilityJson.getString("zone_code"), "Zone");
-                ensureLocationExists(zoneLoc, capitalizeWords(facilityJson.getString("region")), facilityJson.getString("region_code"), "Region");
-                Location wardLoc = ensureLocationExists(null, capitalizeWords(facilityJson.getString("ward") + " - " + facilityJson.getString("council")), facilityJson.getString("ward_code"), "Ward");
-                ensureLocationExists(wardLoc, capitalizeWords(facilityJson.getString("village_mtaa") + " - " + facilityJson.getString("ward") + " - " + facilityJson.getString("council")), facilityJson.getString("village_mtaa_code"), "Village");
-            } catch (Exception e) {
-                LOGGER.severe("Error processing Admin Hierarchy " + e.getMessage());
-            }
+            processAdminHierarchyRecord(response.getJSONObject(i));
+        }
+        LOCATION_SCHEDULER.awaitAll();
+    }
+
+    /**
+     * Schedules the locations of a single HFR Admin Hierarchy record on the {@link #LOCATION_SCHEDULER};
+     * they are reconciled once their parents are.
+     */
+    public static void processAdminHierarchyRecord(JSONObject facilityJson) {
+        try {
+            CompletableFuture<Location> countryLoc = LOCATION_SCHEDULER.schedule(null, capitalizeWords(facilityJson.getString("country")), "TZ", "Country");
+            CompletableFuture<Location> zoneLoc = LOCATION_SCHEDULER.schedule(countryLoc, capitalizeWords(facilityJson.getString("zone")), facilityJson.getString("zone_code"), "Zone");
+            LOCATION_SCHEDULER.schedule(zoneLoc, capitalizeWords(facilityJson.getString("region")), facilityJson.getString("region_code"), "Region");
+            CompletableFuture<Location> wardLoc = LOCATION_SCHEDULER.schedule(null, capitalizeWords(facilityJson.getString("ward") + " - " + facilityJson.getString("council")), facilityJson.getString("ward_code"), "Ward");
+            LOCATION_SCHEDULER.schedule(wardLoc, capitalizeWords(facilityJson.getString("village_mtaa") + " - " + facilityJson.getString("ward") + " - " + facilityJson.getString("council")), facilityJson.getString("village_mtaa_code"), "Village");
+        } catch (Exception e) {
+            LOGGER.severe("Error processing Admin Hierarchy " + e.getMessage());
+            SyncMetrics.increment("reconcile.failures");
         }
     }
 
@@ -121,19 +224,28 @@ public class Main {
      */
     public static void processHfrResponse(JSONArray response) {
         for (int i = 0; i < response.length(); i++) {
-            JSONObject facilityJson = response.getJSONObject(i);
-            String hfrCode = facilityJson.getString("Fac_IDNumber");
+            processHfrRecord(response.getJSONObject(i));
+        }
+        LOCATION_SCHEDULER.awaitAll();
+    }
 
-            try {
-                Location regionLoc = ensureLocationExists(null, capitalizeWords(facilityJson.getString("region")), facilityJson.getString("Region_Code"), "Region");
-                Location districtLoc = ensureLocationExists(regionLoc, capitalizeWords(facilityJson.getString("district")), facilityJson.getString("District_Code"), "District");
-                Location councilLoc = ensureLocationExists(districtLoc, capitalizeWords(facilityJson.getString("council")), facilityJson.getString("Council_Code"), "Council");
-                Location wardLoc = ensureLocationExists(councilLoc, capitalizeWords(facilityJson.getString("ward") + " - " + facilityJson.getString("council")), facilityJson.getString("ward_Code"), "Ward");
-                ensureLocationExists(wardLoc, capitalizeWords(facilityJson.getString("Name") + " - " + hfrCode), facilityJson.getString("Fac_IDNumber"), "Facility");
-                ensureLocationExists(wardLoc, capitalizeWords(facilityJson.getString("village") + " - " + facilityJson.getString("ward") + " - " + facilityJson.getString("council")), facilityJson.getString("Village_Code"), "Village");
-            } catch (Exception e) {
-                LOGGER.severe("Error processing HFR Response " + e.getMessage());
-            }
+    /**
+     * Schedules the locations of a single HFR facility record on the {@link #LOCATION_SCHEDULER};
+     * they are updated or created once their parents are.
+     */
+    public static void processHfrRecord(JSONObject facilityJson) {
+        String hfrCode = facilityJson.getString("Fac_IDNumber");
+
+        try {
+            CompletableFuture<Location> regionLoc = LOCATION_SCHEDULER.schedule(null, capitalizeWords(facilityJson.getString("region")), facilityJson.getString("Region_Code"), "Region");
+            CompletableFuture<Location> districtLoc = LOCATION_SCHEDULER.schedule(regionLoc, capitalizeWords(facilityJson.getString("district")), facilityJson.getString("District_Code"), "District");
+            CompletableFuture<Location> councilLoc = LOCATION_SCHEDULER.schedule(districtLoc, capitalizeWords(facilityJson.getString("council")), facilityJson.getString("Council_Code"), "Council");
+            CompletableFuture<Location> wardLoc = LOCATION_SCHEDULER.schedule(councilLoc, capitalizeWords(facilityJson.getString("ward") + " - " + facilityJson.getString("council")), facilityJson.getString("ward_Code"), "Ward");
+            LOCATION_SCHEDULER.schedule(wardLoc, capitalizeWords(facilityJson.getString("Name") + " - " + hfrCode), facilityJson.getString("Fac_IDNumber"), "Facility");
+            LOCATION_SCHEDULER.schedule(wardLoc, capitalizeWords(facilityJson.getString("village") + " - " + facilityJson.getString("ward") + " - " + facilityJson.getString("council")), facilityJson.getString("Village_Code"), "Village");
+        } catch (Exception e) {
+            LOGGER.severe("Error processing HFR Response " + e.getMessage());
+            SyncMetrics.increment("reconcile.failures");
         }
     }
 
@@ -143,13 +255,11 @@ public class Main {
     public static Location createNewLocation(String name, String parentUuid, Set<String> tags, Map<String, String> attributes) throws Exception {
         int maxAttempts = 10;
         String url = HttpUtil.removeEndingSlash(OPENMRS_BASE_URL) + "/ws/rest/v1/location";
+        long journalEntry = JOURNAL.intendCreate(name, parentUuid, tags, attributes);
         for (int attempt = 1; attempt <= maxAttempts; attempt++) {
             try {
                 LOGGER.info("Creating new location: " + name + " " + tags);
 
-                HttpURLConnection conn = createConnection(url, "POST");
-                conn.setRequestProperty("Content-Type", "application/json");
-
                 JSONObject json = new JSONObject();
                 json.put("name", name);
                 json.put("description", "Created via integration");
@@ -173,19 +283,17 @@ public class Main {
                     }
                     json.put("attributes", attributesArray);
                 }
-                try (OutputStream os = conn.getOutputStream()) {
-                    os.write(json.toString().getBytes());
-                }
-                int responseCode = conn.getResponseCode();
-                LOGGER.info("Create Location Response Code: " + responseCode);
-                if (responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_CREATED) {
-                    try (BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
-                        StringBuilder response = new StringBuilder();
-                        String inputLine;
-                        while ((inputLine = in.readLine()) != null) {
-                            response.append(inputLine);
-                        }
-                        JSONObject createdLocation = new JSONObject(response.toString());
+                try (Response response = callOpenMrs(url, "POST", json)) {
+                    int responseCode = response.code();
+                    LOGGER.info("Create Location Response Code: " + responseCode);
+                    if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_CREATED) {
+                        LOGGER.severe("Failed to create new location: " + name);
+                        JOURNAL.failed(journalEntry);
+                        SyncMetrics.increment("reconcile.failures");
+                        return null;
+                    }
+                    try (Reader in = new InputStreamReader(HttpTransport.counting(response.body().byteStream(), "openmrs.bytes_decoded"), StandardCharsets.UTF_8)) {
+                        JSONObject createdLocation = new JSONObject(new JSONTokener(in));
                         Location newLocation = new Location();
                         newLocation.setLocationId(createdLocation.getString("uuid"));
                         newLocation.setName(createdLocation.getString("name"));
@@ -202,20 +310,29 @@ public class Main {
                         }
 
                         newLocation.setAttributes(locAttributes);
+                        // Keep the uuids of the new attributes, for later updates
+                        JSONArray createdAttributes = createdLocation.optJSONArray("attributes");
+                        for (int i = 0; createdAttributes != null && i < createdAttributes.length(); i++) {
+                            JSONObject createdAttribute = createdAttributes.getJSONObject(i);
+                            JSONObject attributeType = createdAttribute.optJSONObject("attributeType");
+                            if (attributeType != null && createdAttribute.has("uuid")) {
+                                newLocation.setAttributeUuid(attributeType.getString("uuid"), createdAttribute.getString("uuid"));
+                            }
+                        }
                         newLocation.setTags(tags);
                         if (parentUuid != null) {
                             newLocation.setParentLocation(findLocationByUuid(parentUuid));
                         }
+                        JOURNAL.succeeded(journalEntry, newLocation.getLocationId(), response.headers().getDate("Date"));
                         return newLocation;
                     }
-                } else {
-                    LOGGER.severe("Failed to create new location: " + name);
-                    return null;
                 }
             } catch (Exception e) {
                 LOGGER.log(Level.SEVERE, "Error creating new location " + name, e);
             }
         }
+        JOURNAL.failed(journalEntry);
+        SyncMetrics.increment("reconcile.failures");
         return null;
     }
 }
@@ -26,6 +26,12 @@ public class Location extends BaseDataObject {
 
     private Map<String, String> attributes;
 
+    // Attribute type uuid per attribute name, and the uuid of the attribute itself per attribute type uuid,
+    // so an attribute can be updated in place without looking it up in OpenMRS first
+    private Map<String, String> attributeTypeUuids;
+
+    private Map<String, String> attributeUuids;
+
     public Location() {
     }
 
@@ -165,6 +171,52 @@ public class Location extends BaseDataObject {
         attributes.remove(name);
     }
 
+    /**
+     * Adds an attribute together with the uuids OpenMRS knows it by; either uuid may be null.
+     */
+    public void addAttribute(String name, String value, String attributeTypeUuid, String attributeUuid) {
+        addAttribute(name, value);
+        if (attributeTypeUuid != null) {
+            if (attributeTypeUuids == null) {
+                attributeTypeUuids = new HashMap<>();
+            }
+            attributeTypeUuids.put(name, attributeTypeUuid);
+            if (attributeUuid != null) {
+                setAttributeUuid(attributeTypeUuid, attributeUuid);
+            }
+        }
+    }
+
+    public void setAttributeUuid(String attributeTypeUuid, String attributeUuid) {
+        if (attributeUuids == null) {
+            attributeUuids = new HashMap<>();
+        }
+
+        attributeUuids.put(attributeTypeUuid, attributeUuid);
+    }
+
+    /**
+     * @return the uuid of this location's attribute of the given type, or null if it is not known
+     */
+    public String getAttributeUuid(String attributeTypeUuid) {
+        return attributeUuids != null ? attributeUuids.get(attributeTypeUuid) : null;
+    }
+
+    /**
+     * @return the uuid of the type of the named attribute, or null if it is not known
+     */
+    public String getAttributeTypeUuid(String name) {
+        return attributeTypeUuids != null ? attributeTypeUuids.get(name) : null;
+    }
+
+    public Map<String, String> getAttributeTypeUuids() {
+        return attributeTypeUuids;
+    }
+
+    public Map<String, String> getAttributeUuids() {
+        return attributeUuids;
+    }
+
     public Location withLocationId(String locationId) {
         this.locationId = locationId;
         return this;
@@ -0,0 +1,135 @@
+package tz.go.moh.ucs.domain;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import java.util.Collections;
+
+/**
+ * A single write that reconciliation has decided on: creating a location, or updating the name and/or parent of an
+ * existing one. Parents are referenced by uuid when they already exist in OpenMRS and always by code and tag, so an
+ * operation can refer to a parent that an earlier operation of the same plan creates, even when a location at
+ * another level of the hierarchy shares its code.
+ */
+public class LocationOperation {
+
+    public enum Type {
+        CREATE,
+        UPDATE
+    }
+
+    private final Type type;
+
+    private final String code;
+
+    private final String tag;
+
+    // Name of the new location, or the new name of an existing one; null if an update keeps the name
+    private final String name;
+
+    // Uuid of the location to update; null for a create
+    private final String locationUuid;
+
+    private final String parentUuid;
+
+    private final String parentCode;
+
+    // One of the parent's tags; a location is known by its code together with any of its tags
+    private final String parentTag;
+
+    public LocationOperation(Type type, String code, String tag, String name, String locationUuid, String parentUuid, String parentCode,
+                             String parentTag) {
+        this.type = type;
+        this.code = code;
+        this.tag = tag;
+        this.name = name;
+        this.locationUuid = locationUuid;
+        this.parentUuid = parentUuid;
+        this.parentCode = parentCode;
+        this.parentTag = parentTag;
+    }
+
+    public static LocationOperation create(String code, String tag, String name, Location parent) {
+        return new LocationOperation(Type.CREATE, code, tag, name, null, uuidOf(parent), codeOf(parent), tagOf(parent));
+    }
+
+    /**
+     * @param newName   the new name, or null to keep the current one
+     * @param newParent the new parent, or null to keep the current one
+     */
+    public static LocationOperation update(Location existing, String code, String tag, String newName, Location newParent) {
+        return new LocationOperation(Type.UPDATE, code, tag, newName, existing.getLocationId(), uuidOf(newParent), codeOf(newParent), tagOf(newParent));
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getLocationUuid() {
+        return locationUuid;
+    }
+
+    public String getParentUuid() {
+        return parentUuid;
+    }
+
+    public String getParentCode() {
+        return parentCode;
+    }
+
+    public String getParentTag() {
+        return parentTag;
+    }
+
+    public boolean hasParent() {
+        return parentUuid != null || parentCode != null;
+    }
+
+    public boolean isCreate() {
+        return type == Type.CREATE;
+    }
+
+    public boolean isRename() {
+        return type == Type.UPDATE && name != null;
+    }
+
+    public boolean isReparent() {
+        return type == Type.UPDATE && hasParent();
+    }
+
+    private static String uuidOf(Location location) {
+        return location != null ? location.getLocationId() : null;
+    }
+
+    private static String codeOf(Location location) {
+        if (location == null || location.getAttributes() == null) {
+            return null;
+        }
+        String code = location.getAttributes().get("Code");
+        return code != null ? code : location.getAttributes().get("HFR Code");
+    }
+
+    private static String tagOf(Location location) {
+        if (location == null || location.getTags() == null || location.getTags().isEmpty()) {
+            return null;
+        }
+        // The same tag for the same parent in every run, so plans compare
+        return Collections.min(location.getTags());
+    }
+
+    @Override
+    public String toString() {
+        return ToStringBuilder.reflectionToString(this);
+    }
+}
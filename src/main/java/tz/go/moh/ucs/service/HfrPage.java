@@ -0,0 +1,115 @@
+package tz.go.moh.ucs.service;
+
+import org.json.JSONObject;
+import tz.go.moh.ucs.util.JsonStreamReader;
+import tz.go.moh.ucs.util.PageValidatorStore.Validators;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * One downloaded page of an HFR listing: its position in the listing, its body and the validators of that body.
+ * The body is kept as the raw bytes that came over the wire, and {@link #decode} hands its records to the
+ * reconciler one at a time as they are parsed, so no page is ever held as a String, a DOM or a list of records.
+ * <p>
+ * The bytes are buffered rather than decoded straight from the socket because {@link HfrPagePipeline} downloads
+ * pages ahead of the reconciler. An open response would stay unread while earlier pages are reconciled, and it would
+ * hit the read timeout and tie up a connection. The cost is memory: up to {@code hfr.pipeline.queue_depth} plus
+ * {@code hfr.fetch_concurrency} raw page bodies at a time, which is bounded but not constant.
+ * <p>
+ * A page whose body is identical to the last processed one is marked unchanged and has no body.
+ */
+public class HfrPage {
+
+    private int pageNumber;
+
+    private int pageCount;
+
+    private final byte[] body;
+
+    private final boolean unchanged;
+
+    private final String etag;
+
+    private final String lastModified;
+
+    private final String sha256;
+
+    private Validators validators;
+
+    /**
+     * A page without validators, e.g. one read back from the snapshot.
+     */
+    public HfrPage(int pageNumber, byte[] body) {
+        this(pageNumber, body, null, null, null);
+    }
+
+    public HfrPage(int pageNumber, byte[] body, String etag, String lastModified, String sha256) {
+        this.pageNumber = pageNumber;
+        this.pageCount = -1;
+        this.body = body;
+        this.unchanged = false;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.sha256 = sha256;
+    }
+
+    private HfrPage(int pageNumber, Validators validators) {
+        this.pageNumber = pageNumber;
+        this.pageCount = validators.getPageCount();
+        this.body = null;
+        this.unchanged = true;
+        this.etag = validators.getEtag();
+        this.lastModified = validators.getLastModified();
+        this.sha256 = validators.getSha256();
+        this.validators = validators;
+    }
+
+    public static HfrPage unchanged(int pageNumber, Validators validators) {
+        return new HfrPage(pageNumber, validators);
+    }
+
+    /**
+     * Parses the body, handing every record to the processor as soon as it has been read, and takes the page number
+     * and page count from the body's metaData. An unchanged page has nothing to decode.
+     */
+    public void decode(Consumer<JSONObject> recordProcessor) throws IOException {
+        if (unchanged) {
+            return;
+        }
+        try (Reader in = new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8)) {
+            JSONObject metaData = JsonStreamReader.readObject(in, "data", recordProcessor).getJSONObject("metaData");
+            pageNumber = metaData.getInt("currentPage");
+            pageCount = metaData.getInt("pageCount");
+        }
+        if (sha256 != null) {
+            validators = new Validators(etag, lastModified, sha256, pageCount);
+        }
+    }
+
+    public int getPageNumber() {
+        return pageNumber;
+    }
+
+    /**
+     * @return the number of pages in the listing, or -1 until the page has been decoded
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    public boolean isUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return the validators of the body, or null for a page without them or one that has not been decoded yet
+     */
+    public Validators getValidators() {
+        return validators;
+    }
+}
@@ -0,0 +1,112 @@
+package tz.go.moh.ucs.service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Pipeline between HFR download and reconciliation. A fetcher thread downloads a range of pages ahead
+ * (up to {@code concurrency} requests at a time) into a bounded queue, and the reconciler drains the
+ * queue in page order with {@link #take()}. When the queue is full the fetcher blocks, so downloads
+ * never run further ahead of the reconciler than the queue depth.
+ */
+class HfrPagePipeline {
+
+    interface PageFetcher {
+        HfrPage fetch(int page) throws Exception;
+    }
+
+    // Marks the end of the range, or the point at which the fetcher failed
+    private static final HfrPage END = new HfrPage(-1, new byte[0]);
+
+    private final int firstPage;
+    private final int lastPage;
+    private final int concurrency;
+    private final PageFetcher fetcher;
+    private final BlockingQueue<HfrPage> queue;
+    private final Thread fetcherThread;
+
+    private volatile Exception failure;
+
+    HfrPagePipeline(int firstPage, int lastPage, int concurrency, int queueDepth, PageFetcher fetcher) {
+        this.firstPage = firstPage;
+        this.lastPage = lastPage;
+        this.concurrency = Math.max(1, concurrency);
+        this.fetcher = fetcher;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueDepth));
+        this.fetcherThread = new Thread(this::fetchAll, "hfr-page-fetcher");
+        this.fetcherThread.setDaemon(true);
+    }
+
+    void start() {
+        fetcherThread.start();
+    }
+
+    /**
+     * @return the next page in order, waiting for it if needed, or null once every page has been taken
+     * @throws Exception the failure of the first page that could not be fetched
+     */
+    HfrPage take() throws Exception {
+        HfrPage page = queue.take();
+        if (page == END) {
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+        return page;
+    }
+
+    /**
+     * Stops the fetcher and abandons any pages still in flight.
+     */
+    void close() {
+        fetcherThread.interrupt();
+    }
+
+    private void fetchAll() {
+        ExecutorService downloads = Executors.newFixedThreadPool(concurrency);
+        try {
+            // Pages are requested in ascending order and queued from the head of the window,
+            // so the queue order never depends on which download finishes first.
+            Deque<Future<HfrPage>> inFlight = new ArrayDeque<>();
+            int nextPage = firstPage;
+            while (nextPage <= lastPage || !inFlight.isEmpty()) {
+                while (nextPage <= lastPage && inFlight.size() < concurrency) {
+                    final int pageToFetch = nextPage++;
+                    inFlight.add(downloads.submit(() -> fetcher.fetch(pageToFetch)));
+                }
+                queue.put(await(inFlight.poll()));
+            }
+            queue.put(END);
+        } catch (InterruptedException e) {
+            // closed by the reconciler
+        } catch (Exception e) {
+            failure = e;
+            try {
+                queue.put(END);
+            } catch (InterruptedException ignored) {
+                // closed by the reconciler
+            }
+        } finally {
+            downloads.shutdownNow();
+        }
+    }
+
+    private static HfrPage await(Future<HfrPage> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // Surface the original failure so callers see the same exception as a sequential fetch.
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -2,123 +2,218 @@ package tz.go.moh.ucs.service;
 
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
-import org.json.JSONArray;
+import okhttp3.Credentials;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
 import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import tz.go.moh.ucs.util.HttpStatusException;
+import tz.go.moh.ucs.util.HttpTransport;
+import tz.go.moh.ucs.util.PageCheckpoint;
+import tz.go.moh.ucs.util.PageSnapshot;
+import tz.go.moh.ucs.util.PageValidatorStore;
+import tz.go.moh.ucs.util.PageValidatorStore.Validators;
+import tz.go.moh.ucs.util.RetryPolicy;
+import tz.go.moh.ucs.util.SyncMetrics;
+import tz.go.moh.ucs.util.TokenBucketRateLimiter;
+
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Base64;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.function.Consumer;
 
-import static tz.go.moh.ucs.Main.processAdminHierarchyData;
-import static tz.go.moh.ucs.Main.processHfrResponse;
+import static tz.go.moh.ucs.Main.LOCATION_SCHEDULER;
+import static tz.go.moh.ucs.Main.processAdminHierarchyRecord;
+import static tz.go.moh.ucs.Main.processHfrRecord;
 
 public class HfrService {
     private static final Config config = ConfigFactory.load();
 
-    private static final String BASE_URL_GET_HEALTH_FACILITIES = config.getString("hfr.baseUrlGetHealthFacilities");
-    private static final String BASE_URL_GET_HIERARCHY = config.getString("hfr.baseUrlGetHierarchy");
+    public static String BASE_URL_GET_HEALTH_FACILITIES = config.getString("hfr.baseUrlGetHealthFacilities");
+    public static String BASE_URL_GET_HIERARCHY = config.getString("hfr.baseUrlGetHierarchy");
 
     private static final String USERNAME = config.getString("hfr.username");
     private static final String PASSWORD = config.getString("hfr.password");
 
-    public static void fetchHealthFacilityData(int currentPage) throws Exception {
-        int page = currentPage;
-        int totalPageCount;
-        do {
-            System.out.println("Fetching health facility data... PAGE : " + page);
-            String url = BASE_URL_GET_HEALTH_FACILITIES + page;
-            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("Authorization", "Basic " + getBasicAuth());
-            connection.setRequestProperty("Accept", "application/json");
-
-            int responseCode = connection.getResponseCode();
-
-            if (responseCode == 200) { // OK
-                BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                String inputLine;
-                StringBuilder response = new StringBuilder();
-
-                while ((inputLine = in.readLine()) != null) {
-                    response.append(inputLine);
-                }
-                in.close();
+    private static final int FETCH_CONCURRENCY = Math.max(1, config.getInt("hfr.fetch_concurrency"));
+    private static final int PIPELINE_QUEUE_DEPTH = Math.max(1, config.getInt("hfr.pipeline.queue_depth"));
 
-                JSONObject rootObject = new JSONObject(response.toString());
+    public static final String HEALTH_FACILITY_FEED = "health_facilities";
+    public static final String ADMIN_HIERARCHY_FEED = "admin_hierarchy";
 
-                // Get the metaData object
-                JSONObject metaDataObject = rootObject.getJSONObject("metaData");
-                totalPageCount = metaDataObject.getInt("pageCount");
-                page = metaDataObject.getInt("currentPage");
+    // Paces every request made to HFR and slows down when HFR throttles us
+    public static final TokenBucketRateLimiter RATE_LIMITER = new TokenBucketRateLimiter("hfr",
+            config.getDouble("hfr.rate_limit.requests_per_second"), config.getInt("hfr.rate_limit.burst"),
+            config.getDouble("hfr.rate_limit.min_requests_per_second"));
 
-                // Process the data
-                JSONArray dataArray = rootObject.getJSONArray("data");
-                processData(dataArray);
+    // Last fully processed page per feed, used to resume after a failure or a restart
+    public static final PageCheckpoint CHECKPOINT = new PageCheckpoint(Paths.get(config.getString("hfr.checkpoint_file")));
 
-                // Move to the next page
-                page++;
-            } else {
-                throw new Exception("Failed to fetch data. HTTP response code: " + responseCode);
-            }
+    // ETag / Last-Modified / SHA-256 of the last processed body per page, used to skip unchanged pages
+    public static final PageValidatorStore VALIDATORS = new PageValidatorStore(Paths.get(config.getString("hfr.validators_file")));
+    private static final boolean SKIP_UNCHANGED_PAGES = config.getBoolean("hfr.skip_unchanged_pages");
+
+    // Off for plan runs: they read every page and leave the checkpoint and validators to the run that applies the writes
+    public static boolean RECORD_PROGRESS = true;
+
+    // Compressed copy of every downloaded page; in replay mode pages are read from it instead of HFR
+    public static final PageSnapshot SNAPSHOT = new PageSnapshot(Paths.get(config.getString("hfr.snapshot.directory")));
+    public static boolean RECORD_SNAPSHOT = config.getBoolean("hfr.snapshot.record");
+    public static boolean REPLAY_SNAPSHOT = config.getBoolean("hfr.snapshot.replay");
 
-            connection.disconnect();
-        } while (page <= totalPageCount);
+    public static void fetchHealthFacilityData(int currentPage) throws Exception {
+        fetchPages(HEALTH_FACILITY_FEED, BASE_URL_GET_HEALTH_FACILITIES, currentPage, HfrService::processData);
     }
 
 
     public static void fetchAdminHierarchData(int currentPage) throws Exception {
-        int page = currentPage;
-        int totalPageCount;
-        do {
-            System.out.println("Fetching health facility data... PAGE : " + page);
-            String url = BASE_URL_GET_HIERARCHY + page;
-            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("Authorization", "Basic " + getBasicAuth());
-            connection.setRequestProperty("Accept", "application/json");
-
-            int responseCode = connection.getResponseCode();
-
-            if (responseCode == 200) { // OK
-                BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                String inputLine;
-                StringBuilder response = new StringBuilder();
-
-                while ((inputLine = in.readLine()) != null) {
-                    response.append(inputLine);
-                }
-                in.close();
+        fetchPages(ADMIN_HIERARCHY_FEED, BASE_URL_GET_HIERARCHY, currentPage, record -> processAdminHierarchyRecord(record));
+    }
 
-                JSONObject rootObject = new JSONObject(response.toString());
+    /**
+     * Fetches and decodes the first page to learn the page count, then starts a {@link HfrPagePipeline} that
+     * downloads the remaining pages (at most hfr.fetch_concurrency at a time, at most hfr.pipeline.queue_depth pages
+     * ahead) while this thread decodes them and hands their records to the processor strictly in page order.
+     * Every processed page is recorded in the checkpoint, unless {@link #RECORD_PROGRESS} is off; the checkpoint is
+     * cleared once the last page is done, also when locations failed on some pages. It only lets an interrupted run
+     * resume; failed pages are retried by the next run because their validators are not stored.
+     */
+    private static void fetchPages(String feed, String baseUrl, int currentPage, Consumer<JSONObject> recordProcessor) throws Exception {
+        HfrPage firstPage = fetchPage(feed, baseUrl, currentPage);
+        long failures = SyncMetrics.get("reconcile.failures");
+        processPage(feed, firstPage, recordProcessor);
+
+        // The following pages download while the first one is being reconciled
+        HfrPagePipeline pipeline = new HfrPagePipeline(firstPage.getPageNumber() + 1, firstPage.getPageCount(),
+                FETCH_CONCURRENCY, PIPELINE_QUEUE_DEPTH, pageToFetch -> fetchPage(feed, baseUrl, pageToFetch));
+        pipeline.start();
+        try {
+            completePage(feed, firstPage, failures);
+            for (HfrPage page = pipeline.take(); page != null; page = pipeline.take()) {
+                failures = SyncMetrics.get("reconcile.failures");
+                processPage(feed, page, recordProcessor);
+                completePage(feed, page, failures);
+            }
+            if (RECORD_PROGRESS) {
+                CHECKPOINT.clear(feed);
+            }
+        } finally {
+            pipeline.close();
+        }
+    }
 
-                // Get the metaData object
-                JSONObject metaDataObject = rootObject.getJSONObject("metaData");
-                totalPageCount = metaDataObject.getInt("pageCount");
-                page = metaDataObject.getInt("currentPage");
+    /**
+     * Waits until all locations of a page have been written, then records the page in the checkpoint and, unless a
+     * location failed on it as counted in {@code reconcile.failures}, stores its validators, so the page is skipped
+     * while it stays unchanged. A page with failures is reconciled again by the next run.
+     *
+     * @param failuresBefore the failure count before the page was processed
+     */
+    private static void completePage(String feed, HfrPage page, long failuresBefore) {
+        LOCATION_SCHEDULER.awaitAll();
+        long failed = SyncMetrics.get("reconcile.failures") - failuresBefore;
+        if (failed > 0) {
+            System.out.println(failed + " locations failed on page " + page.getPageNumber() + " of " + feed + ", it will be reconciled again");
+            SyncMetrics.increment("hfr.failed_pages");
+        }
+        if (RECORD_PROGRESS) {
+            // Replayed pages carry no validators and leave the ones from the live download untouched
+            if (failed == 0 && page.getValidators() != null) {
+                VALIDATORS.put(feed, page.getPageNumber(), page.getValidators());
+            }
+            CHECKPOINT.markCompleted(feed, page.getPageNumber());
+        }
+    }
 
-                // Process the data
-                JSONArray dataArray = rootObject.getJSONArray("data");
-                processAdminHierarchyData(dataArray);
+    /**
+     * Decodes a page, handing each record to the processor as it is parsed, unless the page is unchanged since the
+     * last run. See {@link #completePage} for when its validators are stored.
+     */
+    private static void processPage(String feed, HfrPage page, Consumer<JSONObject> recordProcessor) throws IOException {
+        if (page.isUnchanged()) {
+            System.out.println("Skipping unchanged page " + page.getPageNumber() + " of " + feed);
+        }
+        page.decode(recordProcessor);
+    }
 
-                // Move to the next page
-                page++;
-            } else {
-                throw new Exception("Failed to fetch data. HTTP response code: " + responseCode);
+    /**
+     * Downloads the body of one page into memory as raw bytes. The bytes are only decoded, one record at a time,
+     * when the page is processed (see {@link HfrPage} for why the body is buffered and not streamed from the socket).
+     * When hfr.skip_unchanged_pages is on, the request is made conditional on the stored validators and
+     * a page answered with 304, or whose body hashes to the stored SHA-256, is returned as unchanged.
+     * In replay mode the page is read from the local snapshot instead and always processed.
+     * Requests to HFR go over the shared {@link HttpTransport}, wait for {@link #RATE_LIMITER}, and 429/503
+     * responses lower its rate.
+     */
+    private static HfrPage fetchPage(String feed, String baseUrl, int page) throws Exception {
+        if (REPLAY_SNAPSHOT) {
+            System.out.println("Replaying health facility data from snapshot... PAGE : " + page);
+            try (InputStream in = SNAPSHOT.openForRead(feed, page)) {
+                return new HfrPage(page, IOUtils.toByteArray(in));
+            }
+        }
+
+        System.out.println("Fetching health facility data... PAGE : " + page);
+        // A 304 has no body to record, so conditional requests are not made while recording a snapshot
+        Validators previous = SKIP_UNCHANGED_PAGES && RECORD_PROGRESS ? VALIDATORS.get(feed, page) : null;
+        boolean conditional = previous != null && !RECORD_SNAPSHOT;
+        String url = baseUrl + page;
+        Request.Builder request = HttpTransport.request(url, "hfr")
+                .header("Authorization", Credentials.basic(USERNAME, PASSWORD))
+                .header("Accept", "application/json");
+        if (conditional && previous.getEtag() != null) {
+            request.header("If-None-Match", previous.getEtag());
+        }
+        if (conditional && previous.getLastModified() != null) {
+            request.header("If-Modified-Since", previous.getLastModified());
+        }
+
+        RATE_LIMITER.acquire();
+        try (Response response = HttpTransport.execute(request.build())) {
+            int responseCode = response.code();
+            if (responseCode == 429 || responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+                RATE_LIMITER.onThrottled();
+            } else if (responseCode < 400) {
+                RATE_LIMITER.onSuccess();
             }
 
-            connection.disconnect();
-        } while (page <= totalPageCount);
-    }
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && conditional) {
+                return HfrPage.unchanged(page, previous);
+            } else if (responseCode == 200) { // OK
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                InputStream body = new DigestInputStream(HttpTransport.counting(response.body().byteStream(), "hfr.bytes_decoded"), digest);
+                if (RECORD_SNAPSHOT) {
+                    body = new TeeInputStream(body, SNAPSHOT.openForWrite(feed, page), true);
+                }
+                byte[] bytes;
+                try (InputStream in = body) {
+                    bytes = IOUtils.toByteArray(in);
+                }
+                if (RECORD_SNAPSHOT) {
+                    SNAPSHOT.commit(feed, page);
+                }
 
-    private static String getBasicAuth() {
-        String auth = USERNAME + ":" + PASSWORD;
-        return Base64.getEncoder().encodeToString(auth.getBytes());
+                String sha256 = Hex.encodeHexString(digest.digest());
+                if (previous != null && previous.getSha256().equals(sha256)) {
+                    // An identical body has the page count of the last one
+                    return HfrPage.unchanged(page, new Validators(response.header("ETag"), response.header("Last-Modified"),
+                            sha256, previous.getPageCount()));
+                }
+                return new HfrPage(page, bytes, response.header("ETag"), response.header("Last-Modified"), sha256);
+            } else {
+                throw new HttpStatusException("Failed to fetch data. HTTP response code: " + responseCode, responseCode,
+                        RetryPolicy.parseRetryAfter(response.header("Retry-After")));
+            }
+        }
     }
 
-    private static void processData(JSONArray dataNode) {
+    private static void processData(JSONObject record) {
         // Process the data as needed
-        processHfrResponse(dataNode);
+        processHfrRecord(record);
     }
 }
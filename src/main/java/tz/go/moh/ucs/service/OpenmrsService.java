@@ -3,7 +3,10 @@ package tz.go.moh.ucs.service;
 
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
+import tz.go.moh.ucs.util.MutationJournal;
+import tz.go.moh.ucs.util.OpenMrsSession;
 
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
@@ -16,6 +19,14 @@ public abstract class OpenmrsService {
     public static String OPENMRS_USER;
     public static String OPENMRS_PWD;
 
+    // Logs in once and authenticates every OpenMRS call with the session cookie
+    public static final OpenMrsSession SESSION = new OpenMrsSession();
+
+    private static final Config JOURNAL_CONFIG = ConfigFactory.load().getConfig("openmrs.journal");
+    // Every create and update sent to OpenMRS since the last location snapshot, replayed after a crash
+    public static final MutationJournal JOURNAL = new MutationJournal(Paths.get(JOURNAL_CONFIG.getString("file")),
+            JOURNAL_CONFIG.getBoolean("enabled"), JOURNAL_CONFIG.getInt("sync_batch"), JOURNAL_CONFIG.getLong("sync_interval_ms"));
+
     public OpenmrsService() {
         Config config = ConfigFactory.load();
         OPENMRS_BASE_URL = config.getString("openmrs.base_url");
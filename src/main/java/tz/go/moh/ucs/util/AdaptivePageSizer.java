@@ -0,0 +1,73 @@
+package tz.go.moh.ucs.util;
+
+import java.util.logging.Logger;
+
+/**
+ * Chooses how many rows to request per page from the latency of earlier pages. A page that times out halves the
+ * size; a full page that took longer than the target latency shrinks it in proportion; a full page that came back
+ * in less than half the target grows it by half. The size always stays between the configured minimum and maximum.
+ * Every request is counted in {@link SyncMetrics} under {@code <name>.page_size.<size>}, so the sizes a run
+ * settled on show up in the run metrics.
+ */
+public class AdaptivePageSizer {
+    private static final Logger LOGGER = Logger.getLogger(AdaptivePageSizer.class.getName());
+
+    private final String name;
+    private final int minSize;
+    private final int maxSize;
+    private final long targetLatencyMillis;
+
+    private int size;
+
+    public AdaptivePageSizer(String name, int initialSize, int minSize, int maxSize, long targetLatencyMillis) {
+        this.name = name;
+        this.minSize = Math.max(1, minSize);
+        this.maxSize = Math.max(this.minSize, maxSize);
+        this.targetLatencyMillis = Math.max(1, targetLatencyMillis);
+        this.size = clamp(initialSize);
+    }
+
+    /**
+     * @return the size to use for the next request, which is also recorded in the run metrics
+     */
+    public synchronized int nextSize() {
+        SyncMetrics.increment(name + ".page_size." + size);
+        return size;
+    }
+
+    /**
+     * @param requestedSize the size that was requested; a page requested before the size last changed is ignored,
+     *                      so a page that was already in flight cannot undo the shrink after a timeout
+     * @param rows          the number of rows that came back; a short page says nothing about how long a full one takes
+     */
+    public synchronized void onSuccess(int requestedSize, int rows, long elapsedMillis) {
+        if (rows < requestedSize || requestedSize != size) {
+            return;
+        }
+        if (elapsedMillis > targetLatencyMillis) {
+            resize((int) (size * (double) targetLatencyMillis / elapsedMillis), elapsedMillis + " ms");
+        } else if (elapsedMillis < targetLatencyMillis / 2) {
+            resize(size + size / 2 + 1, elapsedMillis + " ms");
+        }
+    }
+
+    public synchronized void onTimeout() {
+        resize(size / 2, "a timeout");
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    private void resize(int newSize, String reason) {
+        newSize = clamp(newSize);
+        if (newSize != size) {
+            LOGGER.info(name + " page size " + size + " -> " + newSize + " after " + reason);
+            size = newSize;
+        }
+    }
+
+    private int clamp(int value) {
+        return Math.max(minSize, Math.min(maxSize, value));
+    }
+}
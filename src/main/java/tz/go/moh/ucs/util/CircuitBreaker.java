@@ -0,0 +1,94 @@
+package tz.go.moh.ucs.util;
+
+import java.util.logging.Logger;
+
+/**
+ * Stops calls to a failing remote system. After {@code failureThreshold} consecutive failures the breaker
+ * opens and refuses attempts for {@code openMillis}; after that a single trial attempt is let through,
+ * which closes the breaker on success or opens it again on failure. Callers claim their attempt with
+ * {@link #tryAcquire()}; while the trial is under way the breaker stays open for everybody else.
+ */
+public class CircuitBreaker {
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private int consecutiveFailures;
+    private long openedAt = -1;
+    private boolean trialInProgress;
+
+    public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return true while attempts should not be made
+     */
+    public synchronized boolean isOpen() {
+        return openedAt >= 0 && (trialInProgress || currentTimeMillis() - openedAt < openMillis);
+    }
+
+    /**
+     * Claims an attempt. Once the open period is over only one caller gets to make the trial attempt; it must
+     * report the outcome with {@link #recordSuccess()}, {@link #recordFailure()} or {@link #releaseTrial()}.
+     *
+     * @return false while attempts should not be made
+     */
+    public synchronized boolean tryAcquire() {
+        if (isOpen()) {
+            return false;
+        }
+        if (openedAt >= 0) {
+            trialInProgress = true;
+        }
+        return true;
+    }
+
+    /**
+     * Ends a trial attempt that says nothing about the health of the remote system, e.g. a rejected request, so the
+     * next caller makes the trial instead.
+     */
+    public synchronized void releaseTrial() {
+        trialInProgress = false;
+    }
+
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        openedAt = -1;
+        trialInProgress = false;
+    }
+
+    public synchronized void recordFailure() {
+        trialInProgress = false;
+        consecutiveFailures++;
+        if (consecutiveFailures >= failureThreshold && !isOpen()) {
+            openedAt = currentTimeMillis();
+            SyncMetrics.increment(name + ".circuit_breaker.opened");
+            LOGGER.severe("Circuit breaker for " + name + " opened after " + consecutiveFailures
+                    + " consecutive failures; no attempts for " + openMillis + " ms");
+        }
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    public static class OpenException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public OpenException(String name) {
+            super("Circuit breaker for " + name + " is open; not attempting the call");
+        }
+
+        /**
+         * @param lastFailure the failure that opened the breaker
+         */
+        public OpenException(String name, Exception lastFailure) {
+            super("Circuit breaker for " + name + " opened after: " + lastFailure.getMessage(), lastFailure);
+        }
+    }
+}
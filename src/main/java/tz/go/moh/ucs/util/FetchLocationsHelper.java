@@ -1,45 +1,225 @@
 package tz.go.moh.ucs.util;
 
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import tz.go.moh.ucs.domain.Location;
 import tz.go.moh.ucs.service.OpenmrsService;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Paths;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import static tz.go.moh.ucs.Main.LOGGER;
 
 public class FetchLocationsHelper extends OpenmrsService {
     public static final String LOCATION_URL = "ws/rest/v1/location";
 
+    // Attribute uuids and type uuids come along, so attributes can be updated without fetching the location again
+    static final String LOCATION_VIEW = "custom:(uuid,display,name,attributes:(uuid,display,attributeType:(uuid),voided),tags:(uuid,display),parentLocation:(uuid,display),auditInfo)";
+    // Just enough to tell which locations changed since the snapshot was taken
+    static final String INDEX_VIEW = "custom:(uuid,auditInfo)";
+
+    private static final DateTimeFormatter OPENMRS_DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+
+    private static final Config config = ConfigFactory.load();
+    private static final Config PAGE_SIZE_CONFIG = config.getConfig("openmrs.page_size");
+    private static final int FETCH_CONCURRENCY = Math.max(1, config.getInt("openmrs.fetch_concurrency"));
+    private static final int FETCH_MAX_ATTEMPTS = Math.max(1, config.getInt("openmrs.fetch_max_attempts"));
+    private static final long RETRY_DELAY_MILLIS = config.getLong("openmrs.fetch_retry_delay_ms");
+
+    // The location set of the previous run, refreshed incrementally instead of downloading everything again
+    public static final LocationSnapshot SNAPSHOT = new LocationSnapshot(Paths.get(config.getString("openmrs.snapshot.file")));
+    public static boolean USE_SNAPSHOT = config.getBoolean("openmrs.snapshot.enabled");
+    private static final double SNAPSHOT_MAX_CHANGED_FRACTION = config.getDouble("openmrs.snapshot.max_changed_fraction");
+
+    // One parent stub per parent uuid, shared by the rows decoded by this helper
+    private final Map<String, Location> parentStubs = new ConcurrentHashMap<>();
+
     public synchronized List<Location> getAllOpenMRSlocations() {
         List<Location> allLocationsList = new ArrayList<>();
         return getAllLocations(allLocationsList, 0);
     }
 
+    /**
+     * Loads the location set from the snapshot of the previous run and refreshes it against OpenMRS; downloads
+     * everything instead when snapshots are disabled, there is none yet, or the snapshot cannot be verified.
+     */
+    public synchronized List<Location> getLocations() {
+        if (USE_SNAPSHOT) {
+            try {
+                List<Location> cached = SNAPSHOT.load(OPENMRS_BASE_URL);
+                if (cached == null) {
+                    LOGGER.info("No location snapshot at " + SNAPSHOT.getFile() + ", downloading all locations");
+                } else {
+                    // Writes of a run that stopped before saving its snapshot
+                    JOURNAL.replay(cached);
+                    List<Location> refreshed = refreshLocations(cached);
+                    if (refreshed != null) {
+                        return refreshed;
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.warning("Location snapshot could not be used, downloading all locations: " + e.getMessage());
+            }
+        }
+        return getAllOpenMRSlocations();
+    }
+
+    /**
+     * Saves the location set for the next run to start from.
+     */
+    public static void saveSnapshot(List<Location> locations) {
+        if (!USE_SNAPSHOT) {
+            return;
+        }
+        try {
+            SNAPSHOT.save(locations, OPENMRS_BASE_URL);
+            LOGGER.info("Saved " + locations.size() + " locations to " + SNAPSHOT.getFile());
+        } catch (IOException e) {
+            LOGGER.warning("Could not save the location snapshot, the next run will download all locations: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Downloads the uuid and audit dates of every location and re-fetches only the locations that are new or
+     * were changed after the snapshot was taken; locations missing from OpenMRS are dropped.
+     *
+     * @return the refreshed location set, or null if so much changed that a full download is cheaper,
+     * or if the result does not match the index
+     */
+    List<Location> refreshLocations(List<Location> cached) {
+        return refreshLocations(cached, JOURNAL);
+    }
+
+    /**
+     * A location the journal replayed is kept too, unless OpenMRS reports a change after the journaled write.
+     */
+    List<Location> refreshLocations(List<Location> cached, MutationJournal journal) {
+        List<Location> index = fetchAll(INDEX_VIEW, this::makeIndexEntry, new ArrayList<>(), 0);
+
+        Map<String, Location> cachedByUuid = new HashMap<>();
+        for (Location location : cached) {
+            cachedByUuid.put(location.getLocationId().toLowerCase(), location);
+        }
+        List<Location> refreshed = new ArrayList<>(index.size());
+        List<String> changed = new ArrayList<>();
+        for (Location entry : index) {
+            Location location = cachedByUuid.get(entry.getLocationId().toLowerCase());
+            Date lastChange = lastChange(entry);
+            if (location != null && lastChange != null && (lastChange.equals(lastChange(location)) || journal.isReplayedWrite(entry.getLocationId(), lastChange))) {
+                location.setDateCreated(entry.getDateCreated());
+                location.setDateEdited(entry.getDateEdited());
+                refreshed.add(location);
+            } else {
+                changed.add(entry.getLocationId());
+            }
+        }
+        if (changed.size() > SNAPSHOT_MAX_CHANGED_FRACTION * index.size()) {
+            LOGGER.info(changed.size() + " of " + index.size() + " locations changed since the snapshot, downloading all locations");
+            return null;
+        }
+
+        List<Callable<Location>> fetches = new ArrayList<>();
+        for (String uuid : changed) {
+            fetches.add(() -> fetchLocationWithRetry(uuid));
+        }
+        refreshed.addAll(runConcurrently(fetches));
+
+        Set<String> uuids = new HashSet<>();
+        for (Location location : refreshed) {
+            uuids.add(location.getLocationId().toLowerCase());
+        }
+        if (uuids.size() != index.size()) {
+            LOGGER.warning("Refreshed location set does not match the OpenMRS index, downloading all locations");
+            return null;
+        }
+        LOGGER.info("Loaded " + refreshed.size() + " locations from the snapshot, " + changed.size() + " re-fetched");
+        SyncMetrics.add("openmrs.snapshot.reused", refreshed.size() - changed.size());
+        SyncMetrics.add("openmrs.snapshot.refetched", changed.size());
+        return refreshed;
+    }
+
+    private static Date lastChange(Location location) {
+        return location.getDateEdited() != null ? location.getDateEdited() : location.getDateCreated();
+    }
+
     /**
      * New helper to fetch the raw JSON response from OpenMRS for the given start index.
      */
     protected String fetchLocationResponse(int startIndex) throws Exception {
+        try (Reader reader = openLocationResponse(LOCATION_VIEW, startIndex, PAGE_SIZE_CONFIG.getInt("initial"), false)) {
+            return IOUtils.toString(reader);
+        }
+    }
+
+    /**
+     * Opens one page of the location listing in the given representation as a stream; with includeTotalCount
+     * OpenMRS also reports how many locations there are in total.
+     */
+    protected Reader openLocationResponse(String view, int startIndex, int limit, boolean includeTotalCount) throws Exception {
         String url = HttpUtil.removeEndingSlash(OPENMRS_BASE_URL) + "/" + LOCATION_URL
-                + "?v=custom:(uuid,display,name,attributes,tags:(uuid,display),parentLocation:(uuid,display))"
-                + "&limit=10000&startIndex=" + startIndex;
-        return HttpUtil.getURL(url, OPENMRS_USER, OPENMRS_PWD);
+                + "?v=" + view
+                + "&limit=" + limit + "&startIndex=" + startIndex
+                + (includeTotalCount ? "&totalCount=true" : "");
+        return HttpUtil.openURL(SESSION.newCall(HttpTransport.request(url, "openmrs").build()), "openmrs");
+    }
+
+    /**
+     * Opens a single location as a stream.
+     */
+    protected Reader openLocation(String uuid) throws Exception {
+        String url = HttpUtil.removeEndingSlash(OPENMRS_BASE_URL) + "/" + LOCATION_URL + "/" + uuid + "?v=" + LOCATION_VIEW;
+        return HttpUtil.openURL(SESSION.newCall(HttpTransport.request(url, "openmrs").build()), "openmrs");
+    }
+
+    /**
+     * Decodes a page in a single pass over the stream: each element of "results" becomes a Location as soon as it
+     * has been read, and the links and totalCount come out of the same pass. The page is never held as a whole
+     * document, and no row is serialized and parsed again.
+     */
+    protected LocationPage decodeLocationPage(Reader reader) throws JSONException {
+        return decodeLocationPage(reader, this::makeLocation);
+    }
+
+    protected LocationPage decodeLocationPage(Reader reader, Function<JSONObject, Location> rowDecoder) throws JSONException {
+        List<Location> locations = new ArrayList<>();
+        JSONObject envelope = JsonStreamReader.readObject(reader, ConnectorConstants.RESULTS, row -> locations.add(rowDecoder.apply(row)));
+        return new LocationPage(locations, hasNextLink(envelope), envelope.optInt("totalCount", -1));
     }
 
     /**
      * New helper to parse the response and accumulate locations into the provided list.
      */
     protected List<Location> parseLocationsFromResponse(String response, List<Location> locationList) throws JSONException {
-        JSONObject jsonObject = new JSONObject(response);
-        if (StringUtils.isNotBlank(response) && jsonObject.has(ConnectorConstants.RESULTS)) {
-            JSONArray results = jsonObject.getJSONArray(ConnectorConstants.RESULTS);
-            for (int i = 0; i < results.length(); i++) {
-                locationList.add(makeLocation(results.getJSONObject(i)));
-            }
+        if (StringUtils.isNotBlank(response)) {
+            locationList.addAll(decodeLocationPage(new StringReader(response)).getLocations());
         }
         return locationList;
     }
@@ -48,9 +228,12 @@ public class FetchLocationsHelper extends OpenmrsService {
      * New helper to check if the response indicates that there is a next page of results.
      */
     protected boolean hasNextPage(String response) throws JSONException {
-        JSONObject jsonObject = new JSONObject(response);
-        if (jsonObject.has("links")) {
-            JSONArray links = jsonObject.getJSONArray("links");
+        return hasNextLink(new JSONObject(response));
+    }
+
+    private static boolean hasNextLink(JSONObject envelope) throws JSONException {
+        JSONArray links = envelope.optJSONArray("links");
+        if (links != null) {
             // Check if any link has the 'next' relation
             for (int i = 0; i < links.length(); i++) {
                 if ("next".equalsIgnoreCase(links.getJSONObject(i).optString("rel"))) {
@@ -61,31 +244,173 @@ public class FetchLocationsHelper extends OpenmrsService {
         return false;
     }
 
+    /**
+     * Fetches the first page together with the total number of locations, then downloads the rest of the
+     * index range with openmrs.fetch_concurrency workers. Each worker claims the next stretch of the range at the
+     * current page size, so the page size can change while the download runs (see {@link AdaptivePageSizer}).
+     * Pages are appended in index order. Locations created while the range was downloading are picked up by
+     * following the last page's next link.
+     * Every page is retried at most openmrs.fetch_max_attempts times; after that the download fails instead of
+     * returning an incomplete list.
+     */
     public List<Location> getAllLocations(List<Location> locationList, int startIndex) throws JSONException {
+        return fetchAll(LOCATION_VIEW, this::makeLocation, locationList, startIndex);
+    }
+
+    private List<Location> fetchAll(String view, Function<JSONObject, Location> rowDecoder, List<Location> locationList, int startIndex) {
+        AdaptivePageSizer sizer = new AdaptivePageSizer(INDEX_VIEW.equals(view) ? "openmrs.index" : "openmrs.locations",
+                PAGE_SIZE_CONFIG.getInt("initial"), PAGE_SIZE_CONFIG.getInt("min"), PAGE_SIZE_CONFIG.getInt("max"),
+                PAGE_SIZE_CONFIG.getLong("target_latency_ms"));
+        LocationPage page = fetchPage(view, rowDecoder, sizer, startIndex, Integer.MAX_VALUE, true);
+        locationList.addAll(page.getLocations());
+        int nextIndex = startIndex + page.getLimit();
+        if (!page.hasNextPage()) {
+            return locationList;
+        }
+
+        int end = page.getTotalCount();
+        if (end > nextIndex) {
+            ConcurrentSkipListMap<Integer, LocationPage> pages = new ConcurrentSkipListMap<>();
+            AtomicInteger cursor = new AtomicInteger(nextIndex);
+            List<Callable<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < FETCH_CONCURRENCY; i++) {
+                workers.add(() -> {
+                    while (true) {
+                        int claimStart;
+                        int claimEnd;
+                        synchronized (cursor) {
+                            claimStart = cursor.get();
+                            if (claimStart >= end) {
+                                return null;
+                            }
+                            claimEnd = Math.min(end, claimStart + sizer.getSize());
+                            cursor.set(claimEnd);
+                        }
+                        // A page that had to shrink after a timeout leaves the rest of the claim for the next request
+                        for (int pageStart = claimStart; pageStart < claimEnd; ) {
+                            LocationPage claimed = fetchPage(view, rowDecoder, sizer, pageStart, claimEnd - pageStart, false);
+                            pages.put(pageStart, claimed);
+                            pageStart += claimed.getLimit();
+                        }
+                    }
+                });
+            }
+            runConcurrently(workers);
+            for (LocationPage rangePage : pages.values()) {
+                locationList.addAll(rangePage.getLocations());
+            }
+            page = pages.lastEntry().getValue();
+            nextIndex = pages.lastKey() + page.getLimit();
+        }
+
+        // Without a total count, or for rows added after it was taken, page through the rest one by one
+        while (page.hasNextPage()) {
+            page = fetchPage(view, rowDecoder, sizer, nextIndex, Integer.MAX_VALUE, false);
+            locationList.addAll(page.getLocations());
+            nextIndex += page.getLimit();
+        }
+        return locationList;
+    }
+
+    /**
+     * Runs the tasks openmrs.fetch_concurrency at a time.
+     *
+     * @return their results, in the order of the tasks
+     */
+    private static <T> List<T> runConcurrently(List<Callable<T>> tasks) {
+        if (tasks.isEmpty()) {
+            return new ArrayList<>();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(FETCH_CONCURRENCY, tasks.size()));
         try {
-            LOGGER.info("Fetching locations from OpenMRS Starting index = " + startIndex);
-            String response = fetchLocationResponse(startIndex);
-            if (StringUtils.isNotBlank(response)) {
-                List<Location> updatedLocationList = parseLocationsFromResponse(response, locationList);
-                if (hasNextPage(response)) {
-                    return getAllLocations(updatedLocationList, startIndex + 10000);
+            List<Future<T>> futures = new ArrayList<>();
+            for (Callable<T> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while fetching locations from OpenMRS", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Fetches a page of at most maxRows rows at the size the sizer currently recommends, and reports its latency,
+     * or a timeout, back to the sizer. A retry after a timeout therefore asks for a smaller page.
+     */
+    private LocationPage fetchPage(String view, Function<JSONObject, Location> rowDecoder, AdaptivePageSizer sizer,
+                                   int startIndex, int maxRows, boolean includeTotalCount) {
+        return withRetry("start index " + startIndex, () -> {
+            int limit = Math.min(sizer.nextSize(), maxRows);
+            LOGGER.info("Fetching locations from OpenMRS Starting index = " + startIndex + ", limit = " + limit);
+            long started = System.nanoTime();
+            try (Reader reader = openLocationResponse(view, startIndex, limit, includeTotalCount)) {
+                LocationPage page = decodeLocationPage(reader, rowDecoder);
+                sizer.onSuccess(limit, page.getLocations().size(), (System.nanoTime() - started) / 1_000_000);
+                return new LocationPage(page.getLocations(), page.hasNextPage(), page.getTotalCount(), limit);
+            } catch (Exception e) {
+                if (isTimeout(e)) {
+                    sizer.onTimeout();
                 }
-                return updatedLocationList;
+                throw e;
+            }
+        });
+    }
+
+    private static boolean isTimeout(Throwable e) {
+        // Read timeouts can also surface wrapped, e.g. in a JSONException raised while decoding the stream
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedIOException) {
+                return true;
             }
-        } catch (Exception e) {
-            LOGGER.severe("Exception occurred, retrying fetch for start index: " + e.getMessage());
+        }
+        return false;
+    }
+
+    private Location fetchLocationWithRetry(String uuid) {
+        return withRetry("location " + uuid, () -> {
+            try (Reader reader = openLocation(uuid)) {
+                return makeLocation(new JSONObject(new JSONTokener(reader)));
+            }
+        });
+    }
+
+    private static <T> T withRetry(String what, Callable<T> fetch) {
+        for (int attempt = 1; ; attempt++) {
             try {
-                Thread.sleep(1000);
-            } catch (InterruptedException ex) {
-                throw new RuntimeException(ex);
+                return fetch.call();
+            } catch (Exception e) {
+                if (attempt >= FETCH_MAX_ATTEMPTS) {
+                    throw new IllegalStateException("Could not fetch locations from OpenMRS at " + what
+                            + " after " + attempt + " attempts", e);
+                }
+                LOGGER.severe("Exception occurred, retrying fetch for " + what + ": " + e.getMessage());
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(ex);
+                }
             }
-            return getAllLocations(locationList, startIndex);
         }
-        return locationList;
     }
 
     public Location makeLocation(String locationJson) throws JSONException {
-        JSONObject locationsJsonObject = new JSONObject(locationJson);
+        return makeLocation(new JSONObject(locationJson));
+    }
+
+    public Location makeLocation(JSONObject locationsJsonObject) throws JSONException {
         Location parentLocation = getParent(locationsJsonObject);
         Location location = new Location(locationsJsonObject.getString(ConnectorConstants.UUID),
                 locationsJsonObject.getString(ConnectorConstants.NAME), null, null, parentLocation, null, null);
@@ -102,18 +427,52 @@ public class FetchLocationsHelper extends OpenmrsService {
                 boolean voided = attribute.optBoolean(ConnectorConstants.VOIDED);
                 if (!voided) {
                     String ad = attribute.getString(ConnectorConstants.DISPLAY);
-                    location.addAttribute(ad.substring(0, ad.indexOf(":")), ad.substring(ad.indexOf(":") + 2));
+                    JSONObject attributeType = attribute.optJSONObject("attributeType");
+                    location.addAttribute(ad.substring(0, ad.indexOf(":")), ad.substring(ad.indexOf(":") + 2),
+                            attributeType != null ? attributeType.optString(ConnectorConstants.UUID, null) : null,
+                            attribute.optString(ConnectorConstants.UUID, null));
                 }
             }
         }
 
+        setAuditDates(location, locationsJsonObject);
         return location;
     }
 
-    public Location makeLocation(JSONObject location) throws JSONException {
-        return makeLocation(location.toString());
+    /**
+     * Decodes a row of the {@link #INDEX_VIEW}: a location that only carries its uuid and audit dates.
+     */
+    Location makeIndexEntry(JSONObject row) throws JSONException {
+        Location entry = new Location(row.getString(ConnectorConstants.UUID), null, null, null);
+        setAuditDates(entry, row);
+        return entry;
+    }
+
+    private static void setAuditDates(Location location, JSONObject row) throws JSONException {
+        JSONObject auditInfo = row.optJSONObject("auditInfo");
+        if (auditInfo != null) {
+            location.setDateCreated(parseDateTime(auditInfo.optString("dateCreated", null)));
+            location.setDateEdited(parseDateTime(auditInfo.optString("dateChanged", null)));
+        }
+    }
+
+    static Date parseDateTime(String value) {
+        if (value == null || value.isEmpty() || "null".equals(value)) {
+            return null;
+        }
+        try {
+            return Date.from(OffsetDateTime.parse(value, OPENMRS_DATE_TIME).toInstant());
+        } catch (DateTimeParseException e) {
+            LOGGER.warning("Unreadable OpenMRS date " + value);
+            return null;
+        }
     }
 
+    /**
+     * Builds the parent of a row. The listing only describes parents by uuid and display name, so they are stubs;
+     * one stub is kept per parent uuid and shared by all its children until {@code Main.initializeCaches} links
+     * every row to the canonical parent instance.
+     */
     public Location getParent(JSONObject locobj) throws JSONException {
         JSONObject parentL = (locobj.has(ConnectorConstants.PARENT_LOCATION)
                 && !locobj.isNull(ConnectorConstants.PARENT_LOCATION))
@@ -121,11 +480,17 @@ public class FetchLocationsHelper extends OpenmrsService {
                 : null;
 
         if (parentL != null) {
-            return new Location(parentL.getString(ConnectorConstants.UUID), parentL.getString(ConnectorConstants.DISPLAY),
-                    null, getParent(parentL));
+            String uuid = parentL.getString(ConnectorConstants.UUID);
+            Location parent = parentStubs.get(uuid);
+            if (parent == null) {
+                Location stub = new Location(uuid, parentL.getString(ConnectorConstants.DISPLAY), null, getParent(parentL));
+                parent = parentStubs.putIfAbsent(uuid, stub);
+                if (parent == null) {
+                    parent = stub;
+                }
+            }
+            return parent;
         }
         return null;
     }
-
-
 }
@@ -0,0 +1,36 @@
+package tz.go.moh.ucs.util;
+
+/**
+ * Signals a non-successful HTTP response, keeping the status code and any Retry-After delay the server asked for.
+ */
+public class HttpStatusException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    private final long retryAfterMillis;
+
+    public HttpStatusException(String message, int statusCode, long retryAfterMillis) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the delay requested by the server's Retry-After header, or -1 if it sent none
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    /**
+     * Client errors will not go away by asking again, except for timeouts and throttling.
+     */
+    public boolean isRetryable() {
+        return statusCode < 400 || statusCode >= 500 || statusCode == 408 || statusCode == 429;
+    }
+}
@@ -0,0 +1,193 @@
+package tz.go.moh.ucs.util;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultRedirectStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one HTTP transport used for every call to OpenMRS and HFR. All requests share a single OkHttp client, so
+ * connections (and their TLS sessions) are kept alive in its per-host pool and reused, and HTTP/2 is negotiated
+ * where the server offers it. The Apache client behind the {@code HttpUtil.post/get/delete} helpers is likewise
+ * shared and pooled. OkHttp asks for gzip and decodes it itself.
+ * <p>
+ * Every request is tagged with a metric name (e.g. {@code openmrs}, {@code hfr}), under which
+ * {@link SyncMetrics} counts {@code <name>.requests}, {@code <name>.connections.opened} and
+ * {@code <name>.connections.reused} and the bytes received on the wire, {@code <name>.bytes_received}.
+ * {@link #recordPoolMetrics()} adds how full the pools are at the end of a run.
+ */
+public class HttpTransport {
+
+    private static final Config config = ConfigFactory.load().getConfig("http");
+
+    private static final ConnectionPool CONNECTION_POOL = new ConnectionPool(config.getInt("max_idle_connections"),
+            config.getLong("keep_alive_ms"), TimeUnit.MILLISECONDS);
+
+    private static final OkHttpClient CLIENT = new OkHttpClient.Builder()
+            .connectionPool(CONNECTION_POOL)
+            .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+            .connectTimeout(config.getLong("connect_timeout_ms"), TimeUnit.MILLISECONDS)
+            .readTimeout(config.getLong("read_timeout_ms"), TimeUnit.MILLISECONDS)
+            .writeTimeout(config.getLong("write_timeout_ms"), TimeUnit.MILLISECONDS)
+            .eventListenerFactory(call -> new MetricsListener(metricName(call)))
+            .build();
+
+    private static final PoolingHttpClientConnectionManager APACHE_POOL = apachePool();
+
+    private static final CloseableHttpClient APACHE_CLIENT = HttpClientBuilder.create()
+            .setConnectionManager(APACHE_POOL)
+            .setConnectionManagerShared(true)
+            .setRedirectStrategy(new DefaultRedirectStrategy())
+            .build();
+
+    private HttpTransport() {
+
+    }
+
+    public static OkHttpClient client() {
+        return CLIENT;
+    }
+
+    public static CloseableHttpClient apacheClient() {
+        return APACHE_CLIENT;
+    }
+
+    /**
+     * @return a request builder for the url whose traffic is counted under the given metric name
+     */
+    public static Request.Builder request(String url, String metricName) {
+        return new Request.Builder().url(url).tag(MetricName.class, new MetricName(metricName));
+    }
+
+    /**
+     * Executes the request on the shared client; the caller closes the response to hand the connection back to the pool.
+     */
+    public static Response execute(Request request) throws IOException {
+        return CLIENT.newCall(request).execute();
+    }
+
+    /**
+     * Adds the current size of both connection pools to {@link SyncMetrics}, as {@code http.pool.*}.
+     */
+    public static void recordPoolMetrics() {
+        SyncMetrics.add("http.pool.connections", CONNECTION_POOL.connectionCount());
+        SyncMetrics.add("http.pool.idle_connections", CONNECTION_POOL.idleConnectionCount());
+        PoolStats apache = APACHE_POOL.getTotalStats();
+        SyncMetrics.add("http.pool.apache.leased", apache.getLeased());
+        SyncMetrics.add("http.pool.apache.available", apache.getAvailable());
+        SyncMetrics.add("http.pool.apache.pending", apache.getPending());
+    }
+
+    /**
+     * @return the stream, adding every byte read from it to the named metric
+     */
+    public static InputStream counting(InputStream in, String metric) {
+        return new CountingInputStream(in, metric);
+    }
+
+    private static PoolingHttpClientConnectionManager apachePool() {
+        PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager(config.getLong("keep_alive_ms"), TimeUnit.MILLISECONDS);
+        pool.setMaxTotal(config.getInt("max_connections"));
+        pool.setDefaultMaxPerRoute(config.getInt("max_connections_per_host"));
+        return pool;
+    }
+
+    private static String metricName(Call call) {
+        MetricName tag = call.request().tag(MetricName.class);
+        return tag == null ? "http" : tag.name;
+    }
+
+    private static final class MetricName {
+        private final String name;
+
+        private MetricName(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * A call that gets its connection without connecting first was handed a pooled (or multiplexed) one.
+     */
+    private static class MetricsListener extends EventListener {
+        private final String name;
+        private boolean connected;
+
+        MetricsListener(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void callStart(Call call) {
+            SyncMetrics.increment(name + ".requests");
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connected = true;
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            SyncMetrics.increment(name + (connected ? ".connections.opened" : ".connections.reused"));
+            connected = false;
+        }
+
+        @Override
+        public void responseBodyEnd(Call call, long byteCount) {
+            SyncMetrics.add(name + ".bytes_received", byteCount);
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final String metric;
+
+        CountingInputStream(InputStream in, String metric) {
+            super(in);
+            this.metric = metric;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                SyncMetrics.add(metric, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                SyncMetrics.add(metric, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            SyncMetrics.add(metric, skipped);
+            return skipped;
+        }
+    }
+}
@@ -1,42 +1,41 @@
 package tz.go.moh.ucs.util;
 
+import com.typesafe.config.ConfigFactory;
 import okhttp3.*;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.entity.GzipCompressingEntity;
 import org.apache.http.client.methods.*;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.DefaultRedirectStrategy;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.protocol.HTTP;
 import tz.go.moh.ucs.domain.HttpMethod;
 
-import javax.net.ssl.SSLContext;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.concurrent.TimeUnit;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 
 public class HttpUtil {
 
+    // Request bodies at least this large are sent gzip-compressed; 0 disables request compression
+    static int GZIP_REQUEST_MIN_BYTES = ConfigFactory.load().getInt("http.gzip_request_min_bytes");
+
     private HttpUtil() {
 
     }
 
+    /**
+     * The pooled client shared by every request; consume or close the returned response to release its connection.
+     */
     private static CloseableHttpClient init(String host) {
-        try {
-
-            HttpClientBuilder clientBuilder = HttpClientBuilder.create();
-            clientBuilder.setSSLContext(SSLContext.getDefault());
-            clientBuilder.setRedirectStrategy(new DefaultRedirectStrategy());
-            return clientBuilder.build();
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
-        }
+        return HttpTransport.apacheClient();
     }
 
     public static HttpResponse post(String url, String payload, String data, String username, String password) {
@@ -59,7 +58,7 @@ public class HttpUtil {
             StringEntity entity = new StringEntity(data == null ? "" : data);
             System.out.println(data);
             entity.setContentEncoding(contentType);
-            request.setEntity(entity);
+            request.setEntity(compressIfLarge(entity));
             CloseableHttpClient httpClient = init(request.getURI().getHost());
             return httpClient.execute(request);
         } catch (Exception e) {
@@ -68,6 +67,17 @@ public class HttpUtil {
         }
     }
 
+    /**
+     * The Apache client already asks for and decodes compressed responses; this compresses large request bodies
+     * as well, for servers that accept a gzip Content-Encoding.
+     */
+    static HttpEntity compressIfLarge(StringEntity entity) {
+        if (GZIP_REQUEST_MIN_BYTES > 0 && entity.getContentLength() >= GZIP_REQUEST_MIN_BYTES) {
+            return new GzipCompressingEntity(entity);
+        }
+        return entity;
+    }
+
     public static HttpResponse get(String url, String payload, String username, String password) {
         return get(url, payload, AuthType.BASIC, username + ":" + password);
     }
@@ -163,24 +173,56 @@ public class HttpUtil {
     }
 
     public static String getURL(String url, String username, String password) throws IOException {
-        Request request = new Request.Builder().url(url)
-                .addHeader("Authorization", Credentials.basic(username, password)).build();
-//        OkHttpClient client = new OkHttpClient();
-
-        OkHttpClient client = new OkHttpClient.Builder()
-//                .connectTimeout(10, TimeUnit.SECONDS)
-                .writeTimeout(30, TimeUnit.SECONDS)
-                .readTimeout(600, TimeUnit.SECONDS)
-                .build();
-
-        Call call = client.newCall(request);
-        Response response;
-        response = call.execute();
-        String responseBody = response.body().string();
+        return getURL(url, username, password, "http");
+    }
+
+    /**
+     * OkHttp sends Accept-Encoding: gzip and decodes the response itself; the bytes received on the wire and after
+     * decoding are reported to {@link SyncMetrics} as {@code <metricName>.bytes_received} and {@code .bytes_decoded}.
+     */
+    public static String getURL(String url, String username, String password, String metricName) throws IOException {
+        Response response = newCall(url, username, password, metricName).execute();
+        ResponseBody body = response.body();
+        byte[] decoded = body.bytes();
+        SyncMetrics.add(metricName + ".bytes_decoded", decoded.length);
+        Charset charset = body.contentType() == null ? StandardCharsets.UTF_8 : body.contentType().charset(StandardCharsets.UTF_8);
+        String responseBody = new String(decoded, charset);
         if (!StringUtils.isBlank(responseBody)) {
             return responseBody;
         }
         return null;
 
     }
+
+    /**
+     * Like {@link #getURL(String, String, String, String)}, but hands back the body as a stream so that it can be
+     * decoded while it downloads. Closing the reader releases the connection.
+     *
+     * @throws HttpStatusException if the server does not answer with a 2xx status
+     */
+    public static Reader openURL(String url, String username, String password, String metricName) throws IOException, HttpStatusException {
+        return openURL(newCall(url, username, password, metricName), metricName);
+    }
+
+    /**
+     * Like {@link #openURL(String, String, String, String)}, for a call that is already authenticated.
+     */
+    public static Reader openURL(Call call, String metricName) throws IOException, HttpStatusException {
+        Response response = call.execute();
+        ResponseBody body = response.body();
+        if (!response.isSuccessful()) {
+            int code = response.code();
+            long retryAfterMillis = RetryPolicy.parseRetryAfter(response.header("Retry-After"));
+            response.close();
+            throw new HttpStatusException("Failed to fetch " + call.request().url() + ". HTTP response code: " + code, code, retryAfterMillis);
+        }
+        Charset charset = body.contentType() == null ? StandardCharsets.UTF_8 : body.contentType().charset(StandardCharsets.UTF_8);
+        return new InputStreamReader(HttpTransport.counting(body.byteStream(), metricName + ".bytes_decoded"), charset);
+    }
+
+    private static Call newCall(String url, String username, String password, String metricName) {
+        Request request = HttpTransport.request(url, metricName)
+                .addHeader("Authorization", Credentials.basic(username, password)).build();
+        return HttpTransport.client().newCall(request);
+    }
 }
@@ -0,0 +1,93 @@
+package tz.go.moh.ucs.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.Reader;
+import java.util.function.Consumer;
+
+/**
+ * Reads a top-level JSON object from a stream without building the whole document.
+ * The elements of one array member (e.g. "data" or "results") are decoded one at a time and handed to a
+ * consumer; all other members are small envelope values (metadata, links) and are returned as a JSONObject.
+ */
+public class JsonStreamReader {
+
+    private JsonStreamReader() {
+
+    }
+
+    /**
+     * @param reader           the response body
+     * @param streamedArrayKey the member whose array elements should be streamed
+     * @param elementHandler   receives every element of the streamed array, in document order
+     * @return the remaining members of the object, without the streamed array
+     */
+    public static JSONObject readObject(Reader reader, String streamedArrayKey, Consumer<JSONObject> elementHandler) throws JSONException {
+        JSONTokener tokener = new JSONTokener(reader);
+        JSONObject envelope = new JSONObject();
+
+        if (tokener.nextClean() != '{') {
+            throw tokener.syntaxError("A JSON object text must begin with '{'");
+        }
+        char c = tokener.nextClean();
+        if (c == '}') {
+            return envelope;
+        }
+        while (true) {
+            if (c != '"') {
+                throw tokener.syntaxError("Expected a quoted key");
+            }
+            String key = tokener.nextString('"');
+            if (tokener.nextClean() != ':') {
+                throw tokener.syntaxError("Expected a ':' after a key");
+            }
+
+            if (key.equals(streamedArrayKey)) {
+                readArray(tokener, elementHandler);
+            } else {
+                envelope.put(key, tokener.nextValue());
+            }
+
+            c = tokener.nextClean();
+            if (c == '}') {
+                return envelope;
+            }
+            if (c != ',') {
+                throw tokener.syntaxError("Expected a ',' or '}'");
+            }
+            c = tokener.nextClean();
+        }
+    }
+
+    private static void readArray(JSONTokener tokener, Consumer<JSONObject> elementHandler) throws JSONException {
+        char c = tokener.nextClean();
+        if (c != '[') {
+            // Treat a null (or otherwise non-array) member as an empty array
+            tokener.back();
+            tokener.nextValue();
+            return;
+        }
+        c = tokener.nextClean();
+        if (c == ']') {
+            return;
+        }
+        tokener.back();
+        while (true) {
+            Object element = tokener.nextValue();
+            if (!(element instanceof JSONObject)) {
+                throw tokener.syntaxError("Expected array elements to be JSON objects");
+            }
+            elementHandler.accept((JSONObject) element);
+
+            c = tokener.nextClean();
+            if (c == ']') {
+                return;
+            }
+            if (c != ',') {
+                throw tokener.syntaxError("Expected a ',' or ']'");
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package tz.go.moh.ucs.util;
+
+import tz.go.moh.ucs.domain.Location;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs {@link Utils#ensureLocationExists} for many locations at once while respecting the hierarchy. Each location
+ * waits only for its own parent, so a village is created as soon as its ward's uuid is known, and siblings under
+ * different parents proceed in parallel. Calls for the same code run one after the other, so a location is never
+ * created twice and a later call finds the location created by an earlier one. At most {@code concurrency} calls
+ * run at a time.
+ * <p>
+ * A call that fails is logged and yields null, like a location that could not be created, so its children are
+ * skipped for lack of a parent. Calls that throw and writes that OpenMRS rejects count as failures in the run metric
+ * {@code reconcile.failures}.
+ * {@link #awaitAll()} waits until everything scheduled so far has finished.
+ * <p>
+ * The work done per location is a {@link Reconciler}; a {@link ReconciliationPlanner} in its place plans the
+ * hierarchy instead of writing it.
+ */
+public class LocationCreationScheduler {
+    private static final Logger LOGGER = Logger.getLogger(LocationCreationScheduler.class.getName());
+
+    private static final CompletableFuture<Location> NO_PARENT = CompletableFuture.completedFuture(null);
+
+    /**
+     * Reconciles one location once its parent is known, with the signature of {@link Utils#ensureLocationExists}.
+     */
+    public interface Reconciler {
+        Location reconcile(Location parent, String name, String code, String tag) throws Exception;
+    }
+
+    private final ExecutorService executor;
+    private final Reconciler reconciler;
+    // The last call scheduled per lower-cased code, which the next call for that code waits for
+    private final Map<String, CompletableFuture<Location>> latestByCode = new ConcurrentHashMap<>();
+    // The number of calls scheduled but not yet finished, guarded by the lock
+    private final Object outstandingLock = new Object();
+    private int outstanding;
+
+    /**
+     * A scheduler that reconciles with {@link Utils#ensureLocationExists}, remembering for the rest of its run the
+     * locations it has settled (see {@link ReconciliationMemo}).
+     */
+    public LocationCreationScheduler(int concurrency) {
+        this(concurrency, new ReconciliationMemo(Utils::ensureLocationExists));
+    }
+
+    public LocationCreationScheduler(int concurrency, Reconciler reconciler) {
+        this.reconciler = reconciler;
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, concurrency), runnable -> {
+            Thread thread = new Thread(runnable, "location-writer-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Schedules the {@link Reconciler} for a location once its parent is known.
+     *
+     * @param parent the parent, as returned by an earlier call; null for a location without a parent
+     * @return the existing or created location, or null if there is none
+     */
+    public CompletableFuture<Location> schedule(CompletableFuture<Location> parent, String name, String code, String tag) {
+        if (code == null || code.isEmpty()) {
+            return NO_PARENT;
+        }
+        CompletableFuture<Location> parentReady = parent == null ? NO_PARENT : parent;
+        CompletableFuture<Location> result = latestByCode.compute(code.toLowerCase(), (key, previous) -> {
+            CompletableFuture<Location> ready = previous == null ? parentReady : parentReady.thenCombine(previous, (p, ignored) -> p);
+            return ready.thenApplyAsync(p -> ensure(p, name, code, tag), executor);
+        });
+        synchronized (outstandingLock) {
+            outstanding++;
+        }
+        result.whenComplete((location, e) -> {
+            latestByCode.remove(code.toLowerCase(), result);
+            synchronized (outstandingLock) {
+                if (--outstanding == 0) {
+                    outstandingLock.notifyAll();
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Waits until every call scheduled so far has finished.
+     */
+    public void awaitAll() {
+        boolean interrupted = false;
+        synchronized (outstandingLock) {
+            while (outstanding > 0) {
+                try {
+                    outstandingLock.wait();
+                } catch (InterruptedException e) {
+                    // Like join(), keep waiting and leave the interrupt for the caller
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Counts a call that threw in {@code reconcile.failures}. A null result is not a failure in itself: a location
+     * without a parent is skipped on purpose, and writes that OpenMRS rejected are counted where they are made.
+     */
+    protected Location ensure(Location parent, String name, String code, String tag) {
+        try {
+            return reconciler.reconcile(parent, name, code, tag);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Error reconciling " + tag + " " + code + " (" + name + ")", e);
+            SyncMetrics.increment("reconcile.failures");
+            return null;
+        }
+    }
+}
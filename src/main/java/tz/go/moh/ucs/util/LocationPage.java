@@ -0,0 +1,53 @@
+package tz.go.moh.ucs.util;
+
+import tz.go.moh.ucs.domain.Location;
+
+import java.util.List;
+
+/**
+ * One decoded page of the OpenMRS location listing: its locations, whether OpenMRS linked a next page,
+ * the total number of locations when it was asked for, and the page size that was requested.
+ */
+public class LocationPage {
+
+    private final List<Location> locations;
+
+    private final boolean hasNextPage;
+
+    private final int totalCount;
+
+    private final int limit;
+
+    public LocationPage(List<Location> locations, boolean hasNextPage, int totalCount) {
+        this(locations, hasNextPage, totalCount, -1);
+    }
+
+    public LocationPage(List<Location> locations, boolean hasNextPage, int totalCount, int limit) {
+        this.locations = locations;
+        this.hasNextPage = hasNextPage;
+        this.totalCount = totalCount;
+        this.limit = limit;
+    }
+
+    public List<Location> getLocations() {
+        return locations;
+    }
+
+    public boolean hasNextPage() {
+        return hasNextPage;
+    }
+
+    /**
+     * @return the total number of locations, or -1 if the page did not report it
+     */
+    public int getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * @return the number of rows that were requested for the page, or -1 if unknown
+     */
+    public int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,199 @@
+package tz.go.moh.ucs.util;
+
+import tz.go.moh.ucs.domain.Location;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * The OpenMRS locations of a run, indexed by uuid, by code, by tag and code, and by parent. Different levels of the
+ * hierarchy may share a code, e.g. a ward and a village, so {@link #findByCode(String, String)} looks a location up
+ * by its tag as well; {@link #findByCode(String)} returns whichever location registered the code first.
+ * <p>
+ * Changes that touch more than one index are made under the repository's lock, so they are atomic with respect to
+ * each other. Lookups read the concurrent maps without locking, so the scheduler threads can reconcile in parallel;
+ * each lookup sees a consistent state of its own index, but a reader may see a location that is being added in one
+ * index before it shows in another.
+ * <p>
+ * A tag and code belong to the first location registered with them: {@link #add} leaves a pair that is already
+ * taken alone and reports the location that holds it. {@link #putCode} reassigns a code on purpose, e.g. after the code
+ * attribute of a location was written.
+ * <p>
+ * The run's repository is {@code Main.repository}; the classes that write to it take it as a constructor argument,
+ * so tests and parallel workers can each use their own instance.
+ */
+public class LocationRepository {
+    private static final Logger LOGGER = Logger.getLogger(LocationRepository.class.getName());
+
+    // All keys are lower-cased
+    private final Map<String, Location> byUuid = new ConcurrentHashMap<>();
+    private final Map<String, Location> byCode = new ConcurrentHashMap<>();
+    private final Map<String, Location> byTagAndCode = new ConcurrentHashMap<>();
+    private final Map<String, Set<Location>> childrenByParentUuid = new ConcurrentHashMap<>();
+    private final List<Location> locations = new ArrayList<>();
+
+    /**
+     * Adds the downloaded locations, then replaces every parent stub from the listing with the canonical instance of
+     * that parent, so the hierarchy is a single object graph, and indexes every location under its parent.
+     */
+    public synchronized void addAll(List<Location> downloaded) {
+        for (Location location : downloaded) {
+            if (location != null) {
+                locations.add(location);
+            }
+            if (location != null && location.getLocationId() != null) {
+                byUuid.put(location.getLocationId().toLowerCase(), location);
+                registerCode(location);
+            }
+        }
+        for (Location location : downloaded) {
+            if (location != null && location.getParentLocation() != null && location.getParentLocation().getLocationId() != null) {
+                Location canonicalParent = byUuid.get(location.getParentLocation().getLocationId().toLowerCase());
+                if (canonicalParent != null) {
+                    location.setParentLocation(canonicalParent);
+                }
+                indexChild(location);
+            }
+        }
+    }
+
+    /**
+     * Adds a location created during the run to every index.
+     *
+     * @return the location registered under the new location's tag and code; another one if they were taken already
+     */
+    public synchronized Location add(Location location) {
+        locations.add(location);
+        if (location.getLocationId() != null) {
+            byUuid.put(location.getLocationId().toLowerCase(), location);
+        }
+        indexChild(location);
+        return registerCode(location);
+    }
+
+    /**
+     * Registers the location under the given code, alone and with each of its tags, replacing whichever location
+     * held them.
+     */
+    public synchronized void putCode(String code, Location location) {
+        byCode.put(code.toLowerCase(), location);
+        if (location.getTags() != null) {
+            for (String tag : location.getTags()) {
+                byTagAndCode.put(key(tag, code), location);
+            }
+        }
+    }
+
+    /**
+     * Gives a location a new parent and moves it to the children of that parent.
+     */
+    public synchronized void reparent(Location location, Location newParent) {
+        unindexChild(location);
+        location.setParentLocation(newParent);
+        indexChild(location);
+    }
+
+    public Location findByUuid(String uuid) {
+        return uuid == null ? null : byUuid.get(uuid.toLowerCase());
+    }
+
+    public Location findByCode(String code) {
+        return code == null ? null : byCode.get(code.toLowerCase());
+    }
+
+    /**
+     * A location found by its code alone only counts if it carries the tag, e.g. one tagged after it was added.
+     *
+     * @return the location with the given tag and code, even when a location with another tag shares the code
+     */
+    public Location findByCode(String code, String tag) {
+        if (code == null || tag == null) {
+            return null;
+        }
+        Location location = byTagAndCode.get(key(tag, code));
+        if (location == null) {
+            Location byCodeAlone = findByCode(code);
+            if (byCodeAlone != null && byCodeAlone.getTags() != null && byCodeAlone.hasTag(tag)) {
+                location = byCodeAlone;
+            }
+        }
+        return location;
+    }
+
+    /**
+     * @return a live, unmodifiable view of the locations whose parent has the given uuid; iterating it while the
+     * repository changes is safe, and shows some or all of the changes
+     */
+    public Set<Location> findChildren(String parentUuid) {
+        Set<Location> children = parentUuid == null ? null : childrenByParentUuid.get(parentUuid.toLowerCase());
+        return children != null ? Collections.unmodifiableSet(children) : Collections.emptySet();
+    }
+
+    /**
+     * @return a copy of all locations, downloaded ones first in download order, then the ones created during the run
+     */
+    public synchronized List<Location> getAll() {
+        return new ArrayList<>(locations);
+    }
+
+    public synchronized int size() {
+        return locations.size();
+    }
+
+    public synchronized void clear() {
+        locations.clear();
+        byUuid.clear();
+        byCode.clear();
+        byTagAndCode.clear();
+        childrenByParentUuid.clear();
+    }
+
+    /**
+     * Facilities are known by their HFR code, every other location by its code.
+     */
+    private Location registerCode(Location location) {
+        if (location.getAttributes() == null) {
+            return location;
+        }
+        boolean facility = location.getTags() != null && location.getTags().contains("Facility");
+        String code = location.getAttributes().get(facility ? "HFR Code" : "Code");
+        if (code == null) {
+            return location;
+        }
+        byCode.putIfAbsent(code.toLowerCase(), location);
+        Location registered = location;
+        for (String tag : location.getTags() != null ? location.getTags() : Collections.<String>emptySet()) {
+            Location holder = byTagAndCode.putIfAbsent(key(tag, code), location);
+            if (holder != null && holder != location) {
+                LOGGER.warning(tag + " " + code + " of location " + location.getLocationId() + " belongs to " + holder.getLocationId() + " already");
+                registered = holder;
+            }
+        }
+        return registered;
+    }
+
+    private static String key(String tag, String code) {
+        return tag.toLowerCase() + '\n' + code.toLowerCase();
+    }
+
+    private void indexChild(Location child) {
+        if (child.getParentLocation() != null && child.getParentLocation().getLocationId() != null) {
+            childrenByParentUuid.computeIfAbsent(child.getParentLocation().getLocationId().toLowerCase(), uuid -> ConcurrentHashMap.newKeySet())
+                    .add(child);
+        }
+    }
+
+    private void unindexChild(Location child) {
+        if (child.getParentLocation() != null && child.getParentLocation().getLocationId() != null) {
+            Set<Location> siblings = childrenByParentUuid.get(child.getParentLocation().getLocationId().toLowerCase());
+            if (siblings != null) {
+                siblings.remove(child);
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package tz.go.moh.ucs.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONWriter;
+import tz.go.moh.ucs.domain.Location;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A gzip-compressed copy of the OpenMRS location set as it stood at the end of a run, used to warm-start the
+ * next run. Each location is stored with its tags, attributes and their uuids, parent uuid and audit dates; parents are
+ * stored by reference and come back as stubs that {@code Main.initializeCaches} links to the canonical instances.
+ * <p>
+ * The snapshot records which OpenMRS it was taken from and how many locations it holds. It is written to a
+ * temporary file and moved into place, and gzip's checksum catches a damaged file, so a snapshot that loads
+ * is complete.
+ */
+public class LocationSnapshot {
+
+    static final int FORMAT = 1;
+
+    private final Path file;
+
+    public LocationSnapshot(Path file) {
+        this.file = file;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public void save(List<Location> locations, String source) throws IOException {
+        Path pending = file.resolveSibling(file.getFileName() + ".tmp");
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(pending)), StandardCharsets.UTF_8))) {
+            JSONWriter json = new JSONWriter(writer);
+            json.object().key("format").value(FORMAT).key("source").value(source).key("locations").array();
+            int count = 0;
+            for (Location location : locations) {
+                if (location != null && location.getLocationId() != null) {
+                    json.value(toJson(location));
+                    count++;
+                }
+            }
+            json.endArray().key("count").value(count).endObject();
+        } catch (JSONException e) {
+            throw new IOException("Could not write location snapshot " + file, e);
+        }
+        Files.move(pending, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the stored locations, or null if there is no snapshot
+     * @throws IOException if the snapshot is damaged, incomplete, of another format or taken from another OpenMRS
+     */
+    public List<Location> load(String source) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        List<Location> locations = new ArrayList<>();
+        Map<String, Location> parentStubs = new HashMap<>();
+        JSONObject envelope;
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8)) {
+            envelope = JsonStreamReader.readObject(reader, "locations", row -> locations.add(fromJson(row, parentStubs)));
+        } catch (JSONException e) {
+            throw new IOException("Location snapshot " + file + " is damaged", e);
+        }
+        if (envelope.optInt("format") != FORMAT) {
+            throw new IOException("Location snapshot " + file + " has format " + envelope.opt("format") + ", expected " + FORMAT);
+        }
+        if (!source.equals(envelope.optString("source"))) {
+            throw new IOException("Location snapshot " + file + " was taken from " + envelope.optString("source") + ", not " + source);
+        }
+        if (envelope.optInt("count", -1) != locations.size()) {
+            throw new IOException("Location snapshot " + file + " holds " + locations.size() + " locations, expected " + envelope.optInt("count", -1));
+        }
+        return locations;
+    }
+
+    private static JSONObject toJson(Location location) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("uuid", location.getLocationId());
+        json.put("name", location.getName());
+        if (location.getTags() != null) {
+            json.put("tags", new JSONArray(location.getTags()));
+        }
+        if (location.getAttributes() != null) {
+            json.put("attributes", new JSONObject(location.getAttributes()));
+        }
+        if (location.getAttributeTypeUuids() != null) {
+            json.put("attributeTypes", new JSONObject(location.getAttributeTypeUuids()));
+        }
+        if (location.getAttributeUuids() != null) {
+            json.put("attributeUuids", new JSONObject(location.getAttributeUuids()));
+        }
+        if (location.getParentLocation() != null) {
+            json.put("parent", location.getParentLocation().getLocationId());
+            json.put("parentName", location.getParentLocation().getName());
+        }
+        if (location.getDateCreated() != null) {
+            json.put("dateCreated", location.getDateCreated().getTime());
+        }
+        if (location.getDateEdited() != null) {
+            json.put("dateEdited", location.getDateEdited().getTime());
+        }
+        return json;
+    }
+
+    private static Location fromJson(JSONObject json, Map<String, Location> parentStubs) throws JSONException {
+        Location parent = null;
+        if (json.has("parent")) {
+            String parentUuid = json.getString("parent");
+            parent = parentStubs.computeIfAbsent(parentUuid, uuid -> new Location(uuid, json.optString("parentName", null), null, null));
+        }
+        Location location = new Location(json.getString("uuid"), json.optString("name", null), null, null, parent, null, null);
+        JSONArray tags = json.optJSONArray("tags");
+        if (tags != null) {
+            for (int i = 0; i < tags.length(); i++) {
+                location.addTag(tags.getString(i));
+            }
+        }
+        JSONObject attributes = json.optJSONObject("attributes");
+        JSONObject attributeTypes = json.optJSONObject("attributeTypes");
+        JSONObject attributeUuids = json.optJSONObject("attributeUuids");
+        if (attributes != null) {
+            for (String name : attributes.keySet()) {
+                String attributeTypeUuid = attributeTypes != null ? attributeTypes.optString(name, null) : null;
+                String attributeUuid = attributeTypeUuid != null && attributeUuids != null ? attributeUuids.optString(attributeTypeUuid, null) : null;
+                location.addAttribute(name, attributes.getString(name), attributeTypeUuid, attributeUuid);
+            }
+        }
+        if (json.has("dateCreated")) {
+            location.setDateCreated(new Date(json.getLong("dateCreated")));
+        }
+        if (json.has("dateEdited")) {
+            location.setDateEdited(new Date(json.getLong("dateEdited")));
+        }
+        return location;
+    }
+}
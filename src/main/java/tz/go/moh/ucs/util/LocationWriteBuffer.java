@@ -0,0 +1,135 @@
+package tz.go.moh.ucs.util;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import tz.go.moh.ucs.Main;
+import tz.go.moh.ucs.domain.Location;
+
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static tz.go.moh.ucs.Main.HFR_CODE_LOCATION_ATTRIBUTE_UUID;
+
+/**
+ * Collects the changes to existing OpenMRS locations (new name, new parent, new attributes) and writes all pending
+ * changes of a location as a single POST to {@code /ws/rest/v1/location/{uuid}} when flushed, instead of one
+ * request per change. A change only shows in the in-memory location once OpenMRS has accepted it.
+ * Run metrics count {@code openmrs.location_updates} (requests) and {@code openmrs.location_update_changes}.
+ */
+public class LocationWriteBuffer {
+
+    private final Map<Location, PendingWrite> pending = new LinkedHashMap<>();
+    private final LocationRepository repository;
+
+    /**
+     * A buffer whose accepted changes show in the run's repository.
+     */
+    public LocationWriteBuffer() {
+        this(Main.repository);
+    }
+
+    /**
+     * @param repository the repository to re-index the changed locations in, and to look new parents up in
+     */
+    public LocationWriteBuffer(LocationRepository repository) {
+        this.repository = repository;
+    }
+
+    public void rename(Location location, String newName) {
+        pendingWrite(location).name = newName;
+    }
+
+    public void reparent(Location location, String newParentUuid) {
+        pendingWrite(location).parentUuid = newParentUuid;
+    }
+
+    public void addAttribute(Location location, String attributeTypeUuid, String value) {
+        pendingWrite(location).attributes.put(attributeTypeUuid, value);
+    }
+
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Writes the pending changes, one request per location, and empties the buffer.
+     *
+     * @return the response code of the last request, or -1 if it failed; 0 if nothing was pending
+     */
+    public int flush() {
+        int responseCode = 0;
+        for (PendingWrite write : pending.values()) {
+            responseCode = write.send();
+        }
+        pending.clear();
+        return responseCode;
+    }
+
+    private PendingWrite pendingWrite(Location location) {
+        return pending.computeIfAbsent(location, PendingWrite::new);
+    }
+
+    private class PendingWrite {
+        private final Location location;
+        private String name;
+        private String parentUuid;
+        private final Map<String, String> attributes = new LinkedHashMap<>();
+
+        PendingWrite(Location location) {
+            this.location = location;
+        }
+
+        int send() {
+            JSONObject changes = new JSONObject();
+            int count = 0;
+            if (name != null) {
+                changes.put("name", name);
+                count++;
+            }
+            if (parentUuid != null) {
+                changes.put("parentLocation", new JSONObject().put("uuid", parentUuid));
+                count++;
+            }
+            if (!attributes.isEmpty()) {
+                JSONArray attributesArray = new JSONArray();
+                for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                    // An attribute the location already has is updated in place instead of added a second time
+                    attributesArray.put(new JSONObject().putOpt("uuid", location.getAttributeUuid(attribute.getKey()))
+                            .put("attributeType", attribute.getKey()).put("value", attribute.getValue()));
+                }
+                changes.put("attributes", attributesArray);
+                count += attributes.size();
+            }
+
+            SyncMetrics.increment("openmrs.location_updates");
+            SyncMetrics.add("openmrs.location_update_changes", count);
+            int responseCode = OpenMrsCallsUtils.postLocationUpdate(location, changes);
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                apply();
+            }
+            return responseCode;
+        }
+
+        private void apply() {
+            if (name != null) {
+                location.setName(name);
+            }
+            if (parentUuid != null) {
+                repository.reparent(location, repository.findByUuid(parentUuid));
+            }
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                if (location.getAttributes() == null) {
+                    location.setAttributes(new HashMap<>());
+                }
+                String value = attribute.getValue();
+                if (attribute.getKey().equalsIgnoreCase(HFR_CODE_LOCATION_ATTRIBUTE_UUID))
+                    location.getAttributes().put("HFR Code", value);
+                else
+                    location.getAttributes().put("Code", value);
+                repository.putCode(value, location);
+            }
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package tz.go.moh.ucs.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import tz.go.moh.ucs.domain.Location;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static tz.go.moh.ucs.Main.HFR_CODE_LOCATION_ATTRIBUTE_UUID;
+
+/**
+ * Append-only journal of the writes made to OpenMRS since the location snapshot was saved. Every create and update
+ * is recorded as an intent before the request is sent, and its outcome once the response is in, one JSON object
+ * per line. Records are written straight to the file, so they survive the JVM dying; they are fsynced every
+ * {@code syncBatch} records, or once the oldest unsynced record is {@code syncIntervalMillis} old, so at most the
+ * last batch is lost when the machine itself goes down.
+ * <p>
+ * On restart {@link #replay} applies the writes that succeeded to the snapshot of the previous run, rebuilding the
+ * location set as it stood when the run stopped. Intents without an outcome are in doubt; they are reported and
+ * settled by the snapshot refresh, which finds whatever OpenMRS actually holds. The journal is emptied with
+ * {@link #reset()} once a new snapshot has been saved.
+ * Run metrics count {@code openmrs.journal.records}, {@code .syncs}, {@code .replayed} and {@code .in_doubt}.
+ */
+public class MutationJournal {
+    private static final Logger LOGGER = Logger.getLogger(MutationJournal.class.getName());
+
+    private final Path file;
+    private final boolean enabled;
+    private final int syncBatch;
+    private final long syncIntervalMillis;
+
+    private FileChannel channel;
+    private long lastSequence = -1;
+    private int unsynced;
+    private long oldestUnsyncedAt;
+    // Uuid of every location written by a replayed record, and the server time of that write's response
+    private final Map<String, Long> replayedWrites = new HashMap<>();
+
+    public MutationJournal(Path file, boolean enabled, int syncBatch, long syncIntervalMillis) {
+        this.file = file;
+        this.enabled = enabled;
+        this.syncBatch = Math.max(1, syncBatch);
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Records the intent to create a location.
+     *
+     * @param attributes the attribute values by attribute type uuid, as sent to OpenMRS
+     * @return the sequence number to report the outcome under
+     */
+    public long intendCreate(String name, String parentUuid, Set<String> tags, Map<String, String> attributes) {
+        JSONObject create = new JSONObject().put("name", name).putOpt("parent", parentUuid);
+        if (tags != null) {
+            create.put("tags", new JSONArray(tags));
+        }
+        if (attributes != null) {
+            create.put("attributes", new JSONObject(attributes));
+        }
+        return intend(new JSONObject().put("create", create));
+    }
+
+    /**
+     * Records the intent to POST the given changes to a location.
+     *
+     * @return the sequence number to report the outcome under
+     */
+    public long intendUpdate(String uuid, JSONObject changes) {
+        return intend(new JSONObject().put("update", uuid).put("changes", changes));
+    }
+
+    /**
+     * @param uuid       the uuid of the created or updated location
+     * @param serverTime the Date header of OpenMRS's response, or null if it sent none
+     */
+    public void succeeded(long sequence, String uuid, Date serverTime) {
+        if (sequence >= 0) {
+            append(new JSONObject().put("seq", sequence).put("done", uuid).putOpt("serverAt", serverTime == null ? null : serverTime.getTime()));
+        }
+    }
+
+    public void failed(long sequence) {
+        if (sequence >= 0) {
+            append(new JSONObject().put("seq", sequence).put("failed", true));
+        }
+    }
+
+    private synchronized long intend(JSONObject record) {
+        if (!enabled || !open()) {
+            return -1;
+        }
+        long sequence = ++lastSequence;
+        append(record.put("seq", sequence));
+        return sequence;
+    }
+
+    private synchronized void append(JSONObject record) {
+        if (!enabled || !open()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            ByteBuffer line = ByteBuffer.wrap((record.put("at", now).toString() + "\n").getBytes(StandardCharsets.UTF_8));
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+            SyncMetrics.increment("openmrs.journal.records");
+            if (unsynced++ == 0) {
+                oldestUnsyncedAt = now;
+            }
+            if (unsynced >= syncBatch || now - oldestUnsyncedAt >= syncIntervalMillis) {
+                sync();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write to the journal " + file, e);
+        }
+    }
+
+    /**
+     * Forces the records written so far to disk.
+     */
+    public synchronized void sync() {
+        if (channel == null || unsynced == 0) {
+            return;
+        }
+        try {
+            channel.force(false);
+            unsynced = 0;
+            SyncMetrics.increment("openmrs.journal.syncs");
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not sync the journal " + file, e);
+        }
+    }
+
+    /**
+     * Empties the journal, once everything it records is part of a saved snapshot.
+     */
+    public synchronized void reset() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            Files.deleteIfExists(file);
+            unsynced = 0;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not empty the journal " + file, e);
+        }
+    }
+
+    /**
+     * Opens the journal for appending on first use; new records are numbered after the ones already in the file.
+     */
+    private boolean open() {
+        if (channel != null) {
+            return true;
+        }
+        try {
+            for (JSONObject record : read()) {
+                lastSequence = Math.max(lastSequence, record.getLong("seq"));
+            }
+            if (file.toAbsolutePath().getParent() != null) {
+                Files.createDirectories(file.toAbsolutePath().getParent());
+            }
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not open the journal " + file + ", writes are not journaled", e);
+            return false;
+        }
+    }
+
+    /**
+     * Applies the writes the journal records as succeeded to the locations of the previous run's snapshot: created
+     * locations are added and updated ones get their new name, parent and attributes. Parents come back as stubs
+     * that {@code Main.initializeCaches} links to the canonical instances.
+     *
+     * @return the given list, with the created locations added
+     */
+    public synchronized List<Location> replay(List<Location> locations) {
+        if (!enabled) {
+            return locations;
+        }
+        List<JSONObject> records;
+        try {
+            records = read();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read the journal " + file + ", nothing replayed", e);
+            return locations;
+        }
+        if (records.isEmpty()) {
+            return locations;
+        }
+
+        Map<Long, JSONObject> intents = new TreeMap<>();
+        Map<Long, JSONObject> outcomes = new HashMap<>();
+        for (JSONObject record : records) {
+            if (record.has("create") || record.has("update")) {
+                intents.put(record.getLong("seq"), record);
+            } else {
+                outcomes.put(record.getLong("seq"), record);
+            }
+        }
+        Map<String, Location> byUuid = new HashMap<>();
+        for (Location location : locations) {
+            byUuid.put(location.getLocationId().toLowerCase(), location);
+        }
+
+        int replayed = 0;
+        int inDoubt = 0;
+        for (Map.Entry<Long, JSONObject> intent : intents.entrySet()) {
+            JSONObject outcome = outcomes.get(intent.getKey());
+            if (outcome == null) {
+                inDoubt++;
+                LOGGER.warning("Journaled write without an outcome, OpenMRS decides whether it happened: " + intent.getValue());
+                continue;
+            }
+            String uuid = outcome.optString("done", null);
+            if (uuid == null) {
+                continue;
+            }
+            Location location = byUuid.get(uuid.toLowerCase());
+            if (intent.getValue().has("create")) {
+                if (location == null) {
+                    location = new Location(uuid, null, null, null);
+                    byUuid.put(uuid.toLowerCase(), location);
+                    locations.add(location);
+                }
+                applyCreate(location, intent.getValue().getJSONObject("create"));
+            } else if (location != null) {
+                applyUpdate(location, intent.getValue().getJSONObject("changes"));
+            } else {
+                continue;
+            }
+            if (outcome.has("serverAt")) {
+                replayedWrites.put(uuid.toLowerCase(), outcome.getLong("serverAt"));
+            }
+            replayed++;
+        }
+        LOGGER.info("Replayed " + replayed + " journaled writes from " + file + ", " + inDoubt + " in doubt");
+        SyncMetrics.add("openmrs.journal.replayed", replayed);
+        SyncMetrics.add("openmrs.journal.in_doubt", inDoubt);
+        return locations;
+    }
+
+    /**
+     * Compares the last change OpenMRS reports for a location with the Date header of the response to the replayed
+     * write, so both times come from the server's clock and skew between the two machines does not matter. An HTTP
+     * date has whole seconds, so a change within the second the response was sent still counts as the write; a
+     * write without a server time is never recognised, and the location is simply fetched again.
+     *
+     * @return whether the last change OpenMRS reports for the location is the replayed write itself
+     */
+    public synchronized boolean isReplayedWrite(String uuid, Date lastChange) {
+        Long respondedAt = replayedWrites.get(uuid.toLowerCase());
+        return respondedAt != null && lastChange != null && lastChange.getTime() < respondedAt + 1000;
+    }
+
+    private static void applyCreate(Location location, JSONObject create) {
+        location.setName(create.getString("name"));
+        if (create.has("parent")) {
+            location.setParentLocation(new Location(create.getString("parent"), null, null, null));
+        }
+        JSONArray tags = create.optJSONArray("tags");
+        if (tags != null) {
+            for (int i = 0; i < tags.length(); i++) {
+                location.addTag(tags.getString(i));
+            }
+        }
+        JSONObject attributes = create.optJSONObject("attributes");
+        if (attributes != null) {
+            for (String attributeType : attributes.keySet()) {
+                location.addAttribute(attributeName(attributeType), attributes.getString(attributeType));
+            }
+        }
+    }
+
+    private static void applyUpdate(Location location, JSONObject changes) {
+        if (changes.has("name")) {
+            location.setName(changes.getString("name"));
+        }
+        JSONObject parent = changes.optJSONObject("parentLocation");
+        if (parent != null) {
+            location.setParentLocation(new Location(parent.getString("uuid"), null, null, null));
+        }
+        JSONArray attributes = changes.optJSONArray("attributes");
+        if (attributes != null) {
+            for (int i = 0; i < attributes.length(); i++) {
+                JSONObject attribute = attributes.getJSONObject(i);
+                location.addAttribute(attributeName(attribute.getString("attributeType")), attribute.getString("value"));
+            }
+        }
+    }
+
+    // Same naming as the attributes of locations created or updated during a run
+    private static String attributeName(String attributeTypeUuid) {
+        return attributeTypeUuid.equalsIgnoreCase(HFR_CODE_LOCATION_ATTRIBUTE_UUID) ? "HFR Code" : "Code";
+    }
+
+    /**
+     * Reads every complete record; a line cut short by a crash is skipped.
+     */
+    private List<JSONObject> read() throws IOException {
+        List<JSONObject> records = new ArrayList<>();
+        if (!Files.exists(file)) {
+            return records;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    JSONObject record = new JSONObject(line);
+                    if (record.has("seq") && record.has("at")) {
+                        records.add(record);
+                    }
+                } catch (JSONException e) {
+                    LOGGER.warning("Skipping damaged journal record in " + file + ": " + line);
+                }
+            }
+        }
+        return records;
+    }
+}
@@ -1,45 +1,52 @@
 package tz.go.moh.ucs.util;
 
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import tz.go.moh.ucs.domain.Location;
 
-import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Base64;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static tz.go.moh.ucs.Main.*;
 import static tz.go.moh.ucs.service.OpenmrsService.*;
-import static tz.go.moh.ucs.util.Utils.findLocationByUuid;
 
 public class OpenMrsCallsUtils {
     private static final Logger LOGGER = Logger.getLogger(OpenMrsCallsUtils.class.getName());
+    private static final MediaType JSON = MediaType.get("application/json");
 
     /**
-     * Processes other location types for attribute and name updates.
+     * Processes other location types for attribute and name updates. Only the children of the given location are
+     * visited, through the parent index. The changes to each village are written together, in one request per village.
      */
     public static void getOtherLocation(String uuid, String parentLocationUuid, JSONObject hfrLocation) {
-        for (Location location : allLocations) {
-            if (location != null && location.getLocationId() != null &&
-                    location.getParentLocation() != null &&
-                    location.getParentLocation().getLocationId().equalsIgnoreCase(uuid)) {
+        LocationWriteBuffer writes = new LocationWriteBuffer();
+        for (Location location : Utils.findChildLocations(uuid)) {
+            if (location.getLocationId() != null) {
                 if (location.getTags() != null && location.getTags().contains("Village") &&
                         location.getAttribute("Code") != null &&
                         location.getAttribute("Code").toString().equalsIgnoreCase(hfrLocation.getString("Village_Code"))) {
                     String expectedVillageName = hfrLocation.getString("village");
-                    updateOrCreateLocationAttribute(location, CODE_LOCATION_ATTRIBUTE_UUID, hfrLocation.getString("Village_Code"));
+                    if (location.getAttributes() == null || location.getAttributes().get("Code") == null) {
+                        LOGGER.info("Adding location attribute for: " + location.getName());
+                        writes.addAttribute(location, CODE_LOCATION_ATTRIBUTE_UUID, hfrLocation.getString("Village_Code"));
+                    }
                     if (!location.getName().equalsIgnoreCase(expectedVillageName)) {
-                        updateLocationName(location, expectedVillageName);
+                        writes.rename(location, expectedVillageName);
                     }
                 }
             }
         }
+        writes.flush();
     }
 
     /**
@@ -57,23 +64,23 @@ public class OpenMrsCallsUtils {
     }
 
     /**
-     * Retrieves the UUID of a location attribute.
+     * Retrieves the UUID of a location attribute. It is normally known from the location download; only
+     * locations that were not downloaded with it are fetched from OpenMRS.
      */
     public static String getLocationAttributeUuid(String locationUuid, String attributeTypeUuid) {
+        Location location = Utils.findLocationByUuid(locationUuid);
+        if (location != null && location.getAttributeUuid(attributeTypeUuid) != null) {
+            return location.getAttributeUuid(attributeTypeUuid);
+        }
+        SyncMetrics.increment("openmrs.attribute_uuid_fetches");
         String url = HttpUtil.removeEndingSlash(OPENMRS_BASE_URL) + "/ws/rest/v1/location/" + locationUuid + "?v=full";
         int maxAttempts = 3;
         for (int attempt = 1; attempt <= maxAttempts; attempt++) {
             try {
-                HttpURLConnection conn = createConnection(url, "GET");
-                int responseCode = conn.getResponseCode();
-                if (responseCode == HttpURLConnection.HTTP_OK) {
-                    try (BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
-                        StringBuilder response = new StringBuilder();
-                        String line;
-                        while ((line = in.readLine()) != null) {
-                            response.append(line);
-                        }
-                        JSONObject locationJson = new JSONObject(response.toString());
+                try (Response response = callOpenMrs(url, "GET", null)) {
+                    if (response.code() == HttpURLConnection.HTTP_OK) {
+                        JSONObject locationJson = new JSONObject(new JSONTokener(new InputStreamReader(
+                                HttpTransport.counting(response.body().byteStream(), "openmrs.bytes_decoded"), StandardCharsets.UTF_8)));
                         JSONArray attributes = locationJson.getJSONArray("attributes");
                         for (int i = 0; i < attributes.length(); i++) {
                             JSONObject attribute = attributes.getJSONObject(i);
@@ -97,143 +104,111 @@ public class OpenMrsCallsUtils {
     public static void updateLocationAttribute(String locationUuid, String attributeUuid, String attributeTypeUuid, String newValue) {
         int maxAttempts = 3;
         String url = HttpUtil.removeEndingSlash(OPENMRS_BASE_URL) + "/ws/rest/v1/location/" + locationUuid;
+        JSONObject attribute = new JSONObject();
+        attribute.put("uuid", attributeUuid);
+        attribute.put("attributeType", attributeTypeUuid);
+        attribute.put("value", newValue);
+        JSONArray attributesArray = new JSONArray();
+        attributesArray.put(attribute);
+        JSONObject requestJson = new JSONObject();
+        requestJson.put("attributes", attributesArray);
+        long journalEntry = JOURNAL.intendUpdate(locationUuid, requestJson);
         for (int attempt = 1; attempt <= maxAttempts; attempt++) {
             try {
-                HttpURLConnection conn = createConnection(url, "POST");
-                conn.setRequestProperty("Content-Type", "application/json");
-                JSONObject attribute = new JSONObject();
-                attribute.put("uuid", attributeUuid);
-                attribute.put("attributeType", attributeTypeUuid);
-                attribute.put("value", newValue);
-                JSONArray attributesArray = new JSONArray();
-                attributesArray.put(attribute);
-                JSONObject requestJson = new JSONObject();
-                requestJson.put("attributes", attributesArray);
-                try (OutputStream os = conn.getOutputStream()) {
-                    os.write(requestJson.toString().getBytes());
+                int responseCode;
+                Date respondedAt;
+                try (Response response = callOpenMrs(url, "POST", requestJson)) {
+                    responseCode = response.code();
+                    respondedAt = response.headers().getDate("Date");
                 }
-                int responseCode = conn.getResponseCode();
                 if (responseCode == HttpURLConnection.HTTP_OK) {
                     LOGGER.info("Location attribute updated successfully for " + locationUuid);
+                    JOURNAL.succeeded(journalEntry, locationUuid, respondedAt);
                     return;
                 }
             } catch (Exception e) {
                 LOGGER.log(Level.SEVERE, "Error updating location attribute for " + locationUuid + " (attempt " + attempt + ")", e);
             }
         }
+        JOURNAL.failed(journalEntry);
+        SyncMetrics.increment("reconcile.failures");
     }
 
     /**
      * Adds a new attribute to a location.
      */
     public static void addLocationAttribute(Location location, String attributeTypeUuid, String newValue) {
-        int maxAttempts = 3;
-        String url = HttpUtil.removeEndingSlash(OPENMRS_BASE_URL) + "/ws/rest/v1/location/" + location.getLocationId();
-        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
-            try {
-                HttpURLConnection conn = createConnection(url, "POST");
-                conn.setRequestProperty("Content-Type", "application/json");
-                JSONObject attribute = new JSONObject();
-                attribute.put("attributeType", attributeTypeUuid);
-                attribute.put("value", newValue);
-                JSONArray attributesArray = new JSONArray();
-                attributesArray.put(attribute);
-                JSONObject requestJson = new JSONObject();
-                requestJson.put("attributes", attributesArray);
-                try (OutputStream os = conn.getOutputStream()) {
-                    os.write(requestJson.toString().getBytes());
-                }
-                int responseCode = conn.getResponseCode();
-                LOGGER.info("Add Location Attribute Response Code: " + responseCode);
-                if (responseCode == HttpURLConnection.HTTP_OK) {
-                    LOGGER.info("Location attribute added successfully for " + location.getName());
-                    if (location.getAttributes() == null) {
-                        location.setAttributes(new HashMap<>());
-                    }
-                    if (attributeTypeUuid.equalsIgnoreCase(HFR_CODE_LOCATION_ATTRIBUTE_UUID))
-                        location.getAttributes().put("HFR Code", newValue);
-                    else
-                        location.getAttributes().put("Code", newValue);
-                    codeCache.put(newValue.toLowerCase(), location);
-                    return;
-                }
-            } catch (Exception e) {
-                LOGGER.log(Level.SEVERE, "Error adding location attribute for " + location.getName() + " (attempt " + attempt + ")", e);
-            }
-        }
+        LocationWriteBuffer writes = new LocationWriteBuffer();
+        writes.addAttribute(location, attributeTypeUuid, newValue);
+        writes.flush();
     }
 
     /**
      * Updates a child's parent location.
      */
     public static void updateChildLocationParent(Location child, String newParentUuid) {
+        LocationWriteBuffer writes = new LocationWriteBuffer();
+        writes.reparent(child, newParentUuid);
+        writes.flush();
+    }
+
+    /**
+     * POSTs the given changes to a location, with retries.
+     *
+     * @return the response code, or -1 if every attempt failed
+     */
+    public static int postLocationUpdate(Location location, JSONObject changes) {
         int maxAttempts = 10;
-        String url = HttpUtil.removeEndingSlash(OPENMRS_BASE_URL) + "/ws/rest/v1/location/" + child.getLocationId();
+        String url = HttpUtil.removeEndingSlash(OPENMRS_BASE_URL) + "/ws/rest/v1/location/" + location.getLocationId();
+        long journalEntry = JOURNAL.intendUpdate(location.getLocationId(), changes);
         for (int attempt = 1; attempt <= maxAttempts; attempt++) {
             try {
-                HttpURLConnection conn = createConnection(url, "POST");
-                conn.setRequestProperty("Content-Type", "application/json");
-                JSONObject parentLocationJson = new JSONObject();
-                parentLocationJson.put("uuid", newParentUuid);
-                JSONObject requestJson = new JSONObject();
-                requestJson.put("parentLocation", parentLocationJson);
-                try (OutputStream os = conn.getOutputStream()) {
-                    os.write(requestJson.toString().getBytes());
+                int responseCode;
+                Date respondedAt;
+                try (Response response = callOpenMrs(url, "POST", changes)) {
+                    responseCode = response.code();
+                    respondedAt = response.headers().getDate("Date");
                 }
-                int responseCode = conn.getResponseCode();
-                LOGGER.info("Update Child Parent Response Code: " + responseCode);
+                LOGGER.info("Update Location Response Code: " + responseCode);
                 if (responseCode == HttpURLConnection.HTTP_OK) {
-                    LOGGER.info("Child location parent updated successfully for " + child.getName());
-                    Location newParent = findLocationByUuid(newParentUuid);
-                    child.setParentLocation(newParent);
-                    return;
+                    LOGGER.info("Location " + location.getName() + " updated with " + changes.keySet());
+                    JOURNAL.succeeded(journalEntry, location.getLocationId(), respondedAt);
+                    return responseCode;
+                } else {
+                    LOGGER.info("Failed Update for Location: " + location.getName() + " WITH = " + changes);
                 }
             } catch (Exception e) {
-                LOGGER.log(Level.SEVERE, "Error updating child location parent for " + child.getName(), e);
+                LOGGER.log(Level.SEVERE, "Error updating location " + location.getName() + " (attempt " + attempt + ")", e);
             }
         }
+        JOURNAL.failed(journalEntry);
+        SyncMetrics.increment("reconcile.failures");
+        return -1;
     }
 
     /**
-     * Creates and configures an HttpURLConnection.
+     * Sends a request to OpenMRS over the shared {@link HttpTransport}, authenticated with the OpenMRS session;
+     * a non-null body is sent as JSON. The caller closes the response, which hands the connection back to the pool.
      */
-    public static HttpURLConnection createConnection(String url, String method) throws Exception {
-        URL obj = new URL(url);
-        HttpURLConnection conn = (HttpURLConnection) obj.openConnection();
-        conn.setRequestMethod(method);
-        String basicAuth = Base64.getEncoder().encodeToString((OPENMRS_USER + ":" + OPENMRS_PWD).getBytes());
-        conn.setRequestProperty("Authorization", "Basic " + basicAuth);
-        conn.setDoOutput(true);
-        return conn;
+    public static Response callOpenMrs(String url, String method, JSONObject body) throws IOException {
+        return SESSION.execute(newRequest(url, method, body));
+    }
+
+    /**
+     * Builds an OpenMRS request; {@link OpenMrsSession} adds the credentials when it is sent.
+     */
+    public static Request newRequest(String url, String method, JSONObject body) {
+        return HttpTransport.request(url, "openmrs")
+                .method(method, body == null ? null : RequestBody.create(body.toString(), JSON))
+                .build();
     }
 
     /**
      * Updates the name of a location.
      */
     public static int updateLocationName(Location location, String newName) {
-        int maxAttempts = 10;
-        String url = HttpUtil.removeEndingSlash(OPENMRS_BASE_URL) + "/ws/rest/v1/location/" + location.getLocationId();
-        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
-            try {
-                HttpURLConnection conn = createConnection(url, "POST");
-                conn.setRequestProperty("Content-Type", "application/json");
-                JSONObject requestJson = new JSONObject();
-                requestJson.put("name", newName);
-                try (OutputStream os = conn.getOutputStream()) {
-                    os.write(requestJson.toString().getBytes());
-                }
-                int responseCode = conn.getResponseCode();
-                LOGGER.info("Update Location Name Response Code: " + responseCode);
-                if (responseCode == HttpURLConnection.HTTP_OK) {
-                    location.setName(newName);
-                    return responseCode;
-                } else {
-                    LOGGER.info("Failed Update for Location Name: " + location.getName() + " TO = " + newName);
-                }
-            } catch (Exception e) {
-                LOGGER.log(Level.SEVERE, "Error updating location name for " + location.getName() + " (attempt " + attempt + ")", e);
-            }
-        }
-        return -1;
+        LocationWriteBuffer writes = new LocationWriteBuffer();
+        writes.rename(location, newName);
+        return writes.flush();
     }
 }
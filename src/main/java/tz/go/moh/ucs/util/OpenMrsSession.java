@@ -0,0 +1,134 @@
+package tz.go.moh.ucs.util;
+
+import com.typesafe.config.ConfigFactory;
+import okhttp3.Call;
+import okhttp3.Cookie;
+import okhttp3.Credentials;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import static tz.go.moh.ucs.service.OpenmrsService.OPENMRS_BASE_URL;
+import static tz.go.moh.ucs.service.OpenmrsService.OPENMRS_PWD;
+import static tz.go.moh.ucs.service.OpenmrsService.OPENMRS_USER;
+
+/**
+ * Authenticates against OpenMRS once, at {@code /ws/rest/v1/session}, and sends the {@code JSESSIONID} cookie it
+ * hands out with every later request instead of Basic credentials, so OpenMRS does not check the password again
+ * on each call. A request answered with 401 renews the session once and is sent again. Calls go through a client
+ * derived from {@link HttpTransport#client()}, so they share its connection pool.
+ * <p>
+ * With {@code openmrs.session.enabled} off, or when OpenMRS hands out no session cookie, every request carries
+ * Basic credentials as before. Logins are counted in {@link SyncMetrics} as {@code openmrs.session.logins}.
+ */
+public class OpenMrsSession implements Interceptor {
+    private static final Logger LOGGER = Logger.getLogger(OpenMrsSession.class.getName());
+
+    public static final String SESSION_URL = "ws/rest/v1/session";
+    static final String SESSION_COOKIE = "JSESSIONID";
+
+    private final boolean enabled;
+    private final OkHttpClient client;
+
+    // The current session id, null before the first login or when OpenMRS did not hand one out
+    private volatile String sessionId;
+    private volatile boolean loggedIn;
+
+    public OpenMrsSession() {
+        this(ConfigFactory.load().getBoolean("openmrs.session.enabled"));
+    }
+
+    public OpenMrsSession(boolean enabled) {
+        this.enabled = enabled;
+        this.client = HttpTransport.client().newBuilder().addInterceptor(this).build();
+    }
+
+    /**
+     * @return a call of the request, authenticated with the session
+     */
+    public Call newCall(Request request) {
+        return client.newCall(request);
+    }
+
+    public Response execute(Request request) throws IOException {
+        return newCall(request).execute();
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        if (!enabled) {
+            return chain.proceed(withBasicAuth(chain.request()));
+        }
+        String session = currentSession();
+        Response response = chain.proceed(authenticated(chain.request(), session));
+        if (response.code() == 401) {
+            response.close();
+            SyncMetrics.increment("openmrs.session.expired");
+            response = chain.proceed(authenticated(chain.request(), renew(session)));
+        }
+        return response;
+    }
+
+    private String currentSession() throws IOException {
+        if (loggedIn) {
+            return sessionId;
+        }
+        return renew(null);
+    }
+
+    /**
+     * Logs in again unless another request already replaced the stale session.
+     */
+    private synchronized String renew(String stale) throws IOException {
+        if (loggedIn && (sessionId == null ? stale != null : !sessionId.equals(stale))) {
+            return sessionId;
+        }
+        sessionId = login();
+        loggedIn = true;
+        return sessionId;
+    }
+
+    private String login() throws IOException {
+        String url = HttpUtil.removeEndingSlash(OPENMRS_BASE_URL) + "/" + SESSION_URL;
+        Request request = withBasicAuth(HttpTransport.request(url, "openmrs").build());
+        SyncMetrics.increment("openmrs.session.logins");
+        try (Response response = HttpTransport.execute(request)) {
+            if (!response.isSuccessful()) {
+                throw new IOException("Failed to log in to OpenMRS. HTTP response code: " + response.code());
+            }
+            JSONObject session = new JSONObject(response.body().string());
+            if (!session.optBoolean("authenticated")) {
+                throw new IOException("OpenMRS did not authenticate user " + OPENMRS_USER);
+            }
+            for (Cookie cookie : Cookie.parseAll(response.request().url(), response.headers())) {
+                if (SESSION_COOKIE.equals(cookie.name())) {
+                    return cookie.value();
+                }
+            }
+            String sessionId = session.optString("sessionId", null);
+            if (sessionId == null) {
+                LOGGER.warning("OpenMRS did not hand out a session, sending credentials with every request");
+            }
+            return sessionId;
+        } catch (JSONException e) {
+            throw new IOException("Unexpected OpenMRS session response", e);
+        }
+    }
+
+    private static Request authenticated(Request request, String session) {
+        if (session == null) {
+            return withBasicAuth(request);
+        }
+        return request.newBuilder().header("Cookie", SESSION_COOKIE + "=" + session).build();
+    }
+
+    private static Request withBasicAuth(Request request) {
+        return request.newBuilder().header("Authorization", Credentials.basic(OPENMRS_USER, OPENMRS_PWD)).build();
+    }
+}
@@ -0,0 +1,69 @@
+package tz.go.moh.ucs.util;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records, per paged feed, the last page that was completely processed. Retries and process restarts
+ * use it to resume at the first unfinished page instead of starting again from page one.
+ */
+public class PageCheckpoint {
+    private static final Logger LOGGER = Logger.getLogger(PageCheckpoint.class.getName());
+
+    private final Path file;
+    private final Properties completedPages = new Properties();
+
+    public PageCheckpoint(Path file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * Returns the page a fetch should start from: the page after the last completed one, but never
+     * earlier than the page the caller asked for.
+     */
+    public synchronized int nextPage(String feed, int requestedPage) {
+        String lastCompleted = completedPages.getProperty(feed);
+        if (lastCompleted == null) {
+            return requestedPage;
+        }
+        return Math.max(requestedPage, Integer.parseInt(lastCompleted) + 1);
+    }
+
+    public synchronized void markCompleted(String feed, int page) {
+        completedPages.setProperty(feed, String.valueOf(page));
+        store();
+    }
+
+    /**
+     * Forgets the progress of a feed once all of its pages have been processed, so the next run
+     * starts from the beginning again.
+     */
+    public synchronized void clear(String feed) {
+        if (completedPages.remove(feed) != null) {
+            store();
+        }
+    }
+
+    private void load() {
+        try {
+            PropertiesFileUtil.load(file, completedPages);
+            if (!completedPages.isEmpty()) {
+                LOGGER.info("Loaded HFR paging checkpoint from " + file + ": " + completedPages);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read checkpoint file " + file + ", starting from the requested page", e);
+        }
+    }
+
+    private void store() {
+        try {
+            PropertiesFileUtil.storeAtomically(file, completedPages, "Last completely processed page per HFR feed");
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write checkpoint file " + file, e);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package tz.go.moh.ucs.util;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A gzip-compressed copy of the raw page bodies of paged feeds, one file per page:
+ * {@code <directory>/<feed>/page-<n>.json.gz}. Pages are written to a temporary file and only become
+ * visible to readers once committed, so an interrupted download never leaves a truncated page behind.
+ */
+public class PageSnapshot {
+
+    private final Path directory;
+
+    public PageSnapshot(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens a stream that compresses the raw body of a page into a pending file; call
+     * {@link #commit(String, int)} after the stream has been closed and the page fully read.
+     */
+    public OutputStream openForWrite(String feed, int page) throws IOException {
+        Path pending = pendingFile(feed, page);
+        Files.createDirectories(pending.getParent());
+        return new GZIPOutputStream(Files.newOutputStream(pending));
+    }
+
+    public void commit(String feed, int page) throws IOException {
+        Files.move(pendingFile(feed, page), pageFile(feed, page), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the decompressed raw body of a committed page
+     * @throws FileNotFoundException if the snapshot does not contain the page
+     */
+    public InputStream openForRead(String feed, int page) throws IOException {
+        Path file = pageFile(feed, page);
+        if (!Files.exists(file)) {
+            throw new FileNotFoundException("No snapshot of page " + page + " of " + feed + " in " + directory);
+        }
+        return new GZIPInputStream(Files.newInputStream(file));
+    }
+
+    private Path pageFile(String feed, int page) {
+        return directory.resolve(feed).resolve("page-" + page + ".json.gz");
+    }
+
+    private Path pendingFile(String feed, int page) {
+        return directory.resolve(feed).resolve("page-" + page + ".json.gz.tmp");
+    }
+}
@@ -0,0 +1,113 @@
+package tz.go.moh.ucs.util;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps, per feed and page, the validators of the last body that was processed: the ETag and
+ * Last-Modified headers when the server sent them, and always a SHA-256 of the body and the
+ * page count it reported. They let the next run detect pages that have not changed.
+ */
+public class PageValidatorStore {
+    private static final Logger LOGGER = Logger.getLogger(PageValidatorStore.class.getName());
+
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "last_modified";
+    private static final String SHA256 = "sha256";
+    private static final String PAGE_COUNT = "page_count";
+
+    private final Path file;
+    private final Properties validators = new Properties();
+
+    public PageValidatorStore(Path file) {
+        this.file = file;
+        try {
+            PropertiesFileUtil.load(file, validators);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read page validators from " + file + ", all pages will be processed", e);
+        }
+    }
+
+    /**
+     * @return the validators stored for the page, or null if the page was never processed
+     */
+    public synchronized Validators get(String feed, int page) {
+        String sha256 = validators.getProperty(key(feed, page, SHA256));
+        String pageCount = validators.getProperty(key(feed, page, PAGE_COUNT));
+        if (sha256 == null || pageCount == null) {
+            return null;
+        }
+        return new Validators(validators.getProperty(key(feed, page, ETAG)),
+                validators.getProperty(key(feed, page, LAST_MODIFIED)), sha256, Integer.parseInt(pageCount));
+    }
+
+    public synchronized void put(String feed, int page, Validators pageValidators) {
+        setOrRemove(key(feed, page, ETAG), pageValidators.getEtag());
+        setOrRemove(key(feed, page, LAST_MODIFIED), pageValidators.getLastModified());
+        setOrRemove(key(feed, page, SHA256), pageValidators.getSha256());
+        validators.setProperty(key(feed, page, PAGE_COUNT), String.valueOf(pageValidators.getPageCount()));
+        try {
+            PropertiesFileUtil.storeAtomically(file, validators, "Validators of the last processed body per HFR page");
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write page validators to " + file, e);
+        }
+    }
+
+    public synchronized void clear() {
+        validators.clear();
+        try {
+            PropertiesFileUtil.storeAtomically(file, validators, "Validators of the last processed body per HFR page");
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write page validators to " + file, e);
+        }
+    }
+
+    private void setOrRemove(String key, String value) {
+        if (value == null) {
+            validators.remove(key);
+        } else {
+            validators.setProperty(key, value);
+        }
+    }
+
+    private static String key(String feed, int page, String name) {
+        return feed + "." + page + "." + name;
+    }
+
+    public static class Validators {
+
+        private final String etag;
+
+        private final String lastModified;
+
+        private final String sha256;
+
+        private final int pageCount;
+
+        public Validators(String etag, String lastModified, String sha256, int pageCount) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.sha256 = sha256;
+            this.pageCount = pageCount;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+
+        public int getPageCount() {
+            return pageCount;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package tz.go.moh.ucs.util;
+
+import tz.go.moh.ucs.domain.Location;
+import tz.go.moh.ucs.domain.LocationOperation;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static tz.go.moh.ucs.util.Utils.applyLocationOperation;
+
+/**
+ * Applies a saved {@link ReconciliationPlan} to OpenMRS, one operation at a time in plan order, so every parent
+ * is created before its children. OpenMRS may have changed since the plan was computed, so an operation is
+ * skipped when it no longer fits: a location to create that exists by now, a location to update that is gone,
+ * or a parent that cannot be found. A parent without a uuid, one that an earlier operation creates, is found by its
+ * code and tag, never by its code alone, so a location at another level that shares the code is not mistaken for it.
+ * Run metrics count {@code plan.applied}, {@code plan.skipped} and {@code plan.failed} operations.
+ */
+public class PlanExecutor {
+    private static final Logger LOGGER = Logger.getLogger(PlanExecutor.class.getName());
+
+    private final LocationRepository repository;
+
+    /**
+     * @param repository the current OpenMRS locations, which parents and existing locations are looked up in and
+     *                   written locations are recorded in
+     */
+    public PlanExecutor(LocationRepository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * @return the number of operations applied
+     */
+    public int execute(ReconciliationPlan plan) {
+        int applied = 0;
+        for (LocationOperation operation : plan.getOperations()) {
+            try {
+                if (apply(operation)) {
+                    applied++;
+                    SyncMetrics.increment("plan.applied");
+                } else {
+                    SyncMetrics.increment("plan.skipped");
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Error applying " + operation.getType() + " of " + operation.getTag() + " " + operation.getCode(), e);
+                SyncMetrics.increment("plan.failed");
+            }
+        }
+        LOGGER.info("Applied " + applied + " of " + plan.size() + " planned operations");
+        return applied;
+    }
+
+    private boolean apply(LocationOperation operation) throws Exception {
+        Location parent = null;
+        if (operation.hasParent()) {
+            parent = operation.getParentUuid() != null ? repository.findByUuid(operation.getParentUuid())
+                    : repository.findByCode(operation.getParentCode(), operation.getParentTag());
+            if (parent == null) {
+                LOGGER.warning("Skipping " + operation.getType() + " of " + operation.getTag() + " " + operation.getCode() + ": parent " + operation.getParentCode() + " not found");
+                return false;
+            }
+        }
+
+        Location existing = repository.findByCode(operation.getCode(), operation.getTag());
+        if (operation.isCreate() && existing != null) {
+            LOGGER.warning("Skipping CREATE of " + operation.getTag() + " " + operation.getCode() + ": it exists already");
+            return false;
+        }
+        if (!operation.isCreate() && (existing == null || !Utils.isSameLocation(existing, repository.findByUuid(operation.getLocationUuid())))) {
+            LOGGER.warning("Skipping UPDATE of " + operation.getTag() + " " + operation.getCode() + ": location " + operation.getLocationUuid() + " not found");
+            return false;
+        }
+        return applyLocationOperation(operation, existing, parent, repository) != null;
+    }
+}
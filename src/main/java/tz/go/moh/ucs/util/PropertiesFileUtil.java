@@ -0,0 +1,47 @@
+package tz.go.moh.ucs.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Loads and stores the small properties files used to keep sync state between runs.
+ */
+public class PropertiesFileUtil {
+
+    private PropertiesFileUtil() {
+
+    }
+
+    /**
+     * Loads the file into the given properties; a missing file leaves them unchanged.
+     */
+    public static void load(Path file, Properties properties) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+    }
+
+    /**
+     * Writes to a sibling file first and then moves it into place, so a crash mid-write never
+     * leaves a truncated file behind.
+     */
+    public static void storeAtomically(Path file, Properties properties, String comments) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            properties.store(out, comments);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
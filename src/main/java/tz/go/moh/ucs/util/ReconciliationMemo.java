@@ -0,0 +1,67 @@
+package tz.go.moh.ucs.util;
+
+import tz.go.moh.ucs.domain.Location;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Remembers, for one run, the locations a {@link LocationCreationScheduler.Reconciler} has already settled. Every HFR
+ * facility row repeats its region, district, council and ward, so the same few hundred locations come up thousands
+ * of times; once a location has been reconciled with a given name and parent, later calls with the same code, tag,
+ * name and parent return it straight away, without comparing it again or retrying a write that failed.
+ * <p>
+ * Only locations that were found or created are remembered; a call that yielded null, e.g. for a missing parent,
+ * is tried again next time. Run metrics count {@code reconcile.memo.hits} and {@code reconcile.memo.misses}.
+ */
+public class ReconciliationMemo implements LocationCreationScheduler.Reconciler {
+    private static final Logger LOGGER = Logger.getLogger(ReconciliationMemo.class.getName());
+
+    private final LocationCreationScheduler.Reconciler reconciler;
+    private final Map<String, Location> reconciled = new ConcurrentHashMap<>();
+
+    public ReconciliationMemo(LocationCreationScheduler.Reconciler reconciler) {
+        this.reconciler = reconciler;
+    }
+
+    @Override
+    public Location reconcile(Location parent, String name, String code, String tag) throws Exception {
+        // A planned parent has no uuid yet to key its children by
+        if (code == null || code.isEmpty() || (parent != null && parent.getLocationId() == null)) {
+            return reconciler.reconcile(parent, name, code, tag);
+        }
+        String key = key(parent, name, code, tag);
+        Location location = reconciled.get(key);
+        if (location != null) {
+            SyncMetrics.increment("reconcile.memo.hits");
+            return location;
+        }
+        SyncMetrics.increment("reconcile.memo.misses");
+        location = reconciler.reconcile(parent, name, code, tag);
+        if (location != null) {
+            reconciled.put(key, location);
+        }
+        return location;
+    }
+
+    public int size() {
+        return reconciled.size();
+    }
+
+    private static String key(Location parent, String name, String code, String tag) {
+        String parentUuid = parent == null ? "" : parent.getLocationId().toLowerCase();
+        return code.toLowerCase() + '\n' + tag + '\n' + (name == null ? "" : name.trim()) + '\n' + parentUuid;
+    }
+
+    /**
+     * Logs the share of reconciliations answered from the memo in this run.
+     */
+    public static void logHitRate() {
+        long hits = SyncMetrics.get("reconcile.memo.hits");
+        long total = hits + SyncMetrics.get("reconcile.memo.misses");
+        if (total > 0) {
+            LOGGER.info(String.format("Reconciliation memo answered %d of %d calls (%.1f%%)", hits, total, 100.0 * hits / total));
+        }
+    }
+}
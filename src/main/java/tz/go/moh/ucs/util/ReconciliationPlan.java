@@ -0,0 +1,142 @@
+package tz.go.moh.ucs.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONWriter;
+import tz.go.moh.ucs.domain.LocationOperation;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The ordered list of writes a reconciliation would make to OpenMRS. Every operation comes after the operation
+ * that creates its parent, so applying the plan front to back never needs a parent that does not exist yet.
+ * <p>
+ * A plan is saved as JSON with its counts ahead of the operations, and records which OpenMRS it was computed against;
+ * it is written to a temporary file and moved into place, like the location snapshot.
+ */
+public class ReconciliationPlan {
+
+    static final int FORMAT = 1;
+
+    private final List<LocationOperation> operations = new ArrayList<>();
+
+    public synchronized void add(LocationOperation operation) {
+        operations.add(operation);
+    }
+
+    public synchronized List<LocationOperation> getOperations() {
+        return Collections.unmodifiableList(new ArrayList<>(operations));
+    }
+
+    public synchronized int size() {
+        return operations.size();
+    }
+
+    public synchronized int getCreates() {
+        int count = 0;
+        for (LocationOperation operation : operations) {
+            if (operation.isCreate()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized int getRenames() {
+        int count = 0;
+        for (LocationOperation operation : operations) {
+            if (operation.isRename()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized int getReparents() {
+        int count = 0;
+        for (LocationOperation operation : operations) {
+            if (operation.isReparent()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public String summary() {
+        return getCreates() + " creates, " + getRenames() + " renames, " + getReparents() + " re-parents";
+    }
+
+    public synchronized void save(Path file, String source) throws IOException {
+        Path pending = file.resolveSibling(file.getFileName() + ".tmp");
+        if (file.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+        }
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(pending), StandardCharsets.UTF_8))) {
+            JSONWriter json = new JSONWriter(writer);
+            json.object().key("format").value(FORMAT).key("source").value(source)
+                    .key("creates").value(getCreates()).key("renames").value(getRenames()).key("reparents").value(getReparents())
+                    .key("operations").array();
+            for (LocationOperation operation : operations) {
+                json.value(toJson(operation));
+            }
+            json.endArray().key("count").value(operations.size()).endObject();
+        } catch (JSONException e) {
+            throw new IOException("Could not write reconciliation plan " + file, e);
+        }
+        Files.move(pending, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @throws IOException if the plan is missing, damaged, incomplete, of another format or computed against another OpenMRS
+     */
+    public static ReconciliationPlan load(Path file, String source) throws IOException {
+        ReconciliationPlan plan = new ReconciliationPlan();
+        JSONObject envelope;
+        try (Reader reader = new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8)) {
+            envelope = JsonStreamReader.readObject(reader, "operations", row -> plan.add(fromJson(row)));
+        } catch (JSONException | IllegalArgumentException e) {
+            throw new IOException("Reconciliation plan " + file + " is damaged", e);
+        }
+        if (envelope.optInt("format") != FORMAT) {
+            throw new IOException("Reconciliation plan " + file + " has format " + envelope.opt("format") + ", expected " + FORMAT);
+        }
+        if (!source.equals(envelope.optString("source"))) {
+            throw new IOException("Reconciliation plan " + file + " was computed against " + envelope.optString("source") + ", not " + source);
+        }
+        if (envelope.optInt("count", -1) != plan.size()) {
+            throw new IOException("Reconciliation plan " + file + " holds " + plan.size() + " operations, expected " + envelope.optInt("count", -1));
+        }
+        return plan;
+    }
+
+    private static JSONObject toJson(LocationOperation operation) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("type", operation.getType().name());
+        json.put("code", operation.getCode());
+        json.put("tag", operation.getTag());
+        json.putOpt("name", operation.getName());
+        json.putOpt("uuid", operation.getLocationUuid());
+        json.putOpt("parent", operation.getParentUuid());
+        json.putOpt("parentCode", operation.getParentCode());
+        json.putOpt("parentTag", operation.getParentTag());
+        return json;
+    }
+
+    private static LocationOperation fromJson(JSONObject json) throws JSONException {
+        return new LocationOperation(LocationOperation.Type.valueOf(json.getString("type")), json.getString("code"),
+                json.getString("tag"), json.optString("name", null), json.optString("uuid", null),
+                json.optString("parent", null), json.optString("parentCode", null), json.optString("parentTag", null));
+    }
+}
@@ -0,0 +1,56 @@
+package tz.go.moh.ucs.util;
+
+import tz.go.moh.ucs.domain.Location;
+import tz.go.moh.ucs.domain.LocationOperation;
+
+import static tz.go.moh.ucs.util.Utils.planLocation;
+
+/**
+ * Reconciles locations against the in-memory caches like {@link Utils#ensureLocationExists}, but records the writes
+ * in a {@link ReconciliationPlan} instead of making them. Nothing is sent to OpenMRS.
+ * <p>
+ * Each planned location stands in for the real one in the repository's code index, so later records, and the hamlet
+ * import, see the outcome of the plan: a location is planned once, and children of a planned location refer to it
+ * by code.
+ * The downloaded locations themselves are left as they are.
+ */
+public class ReconciliationPlanner implements LocationCreationScheduler.Reconciler {
+
+    private final ReconciliationPlan plan = new ReconciliationPlan();
+    private final LocationRepository repository;
+
+    /**
+     * @param repository the downloaded locations, which the planned ones are registered with
+     */
+    public ReconciliationPlanner(LocationRepository repository) {
+        this.repository = repository;
+    }
+
+    public ReconciliationPlan getPlan() {
+        return plan;
+    }
+
+    @Override
+    public synchronized Location reconcile(Location parent, String name, String code, String tag) {
+        if (code == null || code.isEmpty()) {
+            return null;
+        }
+        Location existing = repository.findByCode(code, tag);
+        LocationOperation operation = planLocation(existing, parent, name, code, tag);
+        if (operation == null) {
+            return existing;
+        }
+        plan.add(operation);
+
+        Location planned;
+        if (operation.isCreate()) {
+            planned = new Location(null, name, null, parent).withTag(tag)
+                    .withAttribute(tag.equalsIgnoreCase("facility") ? "HFR Code" : "Code", code);
+        } else {
+            planned = new Location(existing.getLocationId(), operation.isRename() ? operation.getName() : existing.getName(), null, null,
+                    operation.isReparent() ? parent : existing.getParentLocation(), existing.getTags(), existing.getAttributes());
+        }
+        repository.putCode(code, planned);
+        return planned;
+    }
+}
@@ -0,0 +1,123 @@
+package tz.go.moh.ucs.util;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Retries an operation with exponential backoff and full jitter. A Retry-After delay sent with an
+ * {@link HttpStatusException} is honoured when it is longer than the backoff, non-retryable HTTP
+ * errors end the retries at once, and a shared {@link CircuitBreaker} stops attempts after sustained failure.
+ * Time spent in attempts and time spent waiting between them are reported to {@link SyncMetrics}
+ * as {@code <name>.working_ms} and {@code <name>.waiting_ms}.
+ */
+public class RetryPolicy {
+    private static final Logger LOGGER = Logger.getLogger(RetryPolicy.class.getName());
+
+    public interface Attempt {
+        void run(int attempt) throws Exception;
+    }
+
+    private final String name;
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final CircuitBreaker circuitBreaker;
+
+    public RetryPolicy(String name, int maxAttempts, long baseDelayMillis, long maxDelayMillis, CircuitBreaker circuitBreaker) {
+        this.name = name;
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Runs the attempt until it succeeds.
+     *
+     * @throws Exception the last failure once attempts are exhausted or the failure is not retryable,
+     *                   or a {@link CircuitBreaker.OpenException} when the breaker refuses further attempts, or opens
+     *                   on a failure, which is then its cause
+     */
+    public void execute(Attempt operation) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            if (!circuitBreaker.tryAcquire()) {
+                throw new CircuitBreaker.OpenException(name);
+            }
+
+            long started = System.nanoTime();
+            Exception failure;
+            try {
+                SyncMetrics.increment(name + ".attempts");
+                operation.run(attempt);
+                circuitBreaker.recordSuccess();
+                return;
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                SyncMetrics.add(name + ".working_ms", (System.nanoTime() - started) / 1_000_000);
+            }
+
+            SyncMetrics.increment(name + ".failures");
+            if (failure instanceof HttpStatusException && !((HttpStatusException) failure).isRetryable()) {
+                circuitBreaker.releaseTrial();
+                throw failure;
+            }
+            circuitBreaker.recordFailure();
+            if (circuitBreaker.isOpen()) {
+                throw new CircuitBreaker.OpenException(name, failure);
+            }
+            if (attempt >= maxAttempts) {
+                throw failure;
+            }
+
+            long delay = delayBeforeRetry(attempt, failure);
+            LOGGER.log(Level.WARNING, name + " attempt " + attempt + " failed, retrying in " + delay + " ms: " + failure.getMessage());
+            long waitStarted = System.nanoTime();
+            sleep(delay);
+            SyncMetrics.add(name + ".waiting_ms", (System.nanoTime() - waitStarted) / 1_000_000);
+        }
+    }
+
+    /**
+     * Full jitter: a random delay between zero and the exponential backoff for this attempt, or the server's
+     * Retry-After delay when that is longer.
+     */
+    long delayBeforeRetry(int attempt, Exception failure) {
+        long backoff = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 30));
+        long delay = ThreadLocalRandom.current().nextLong(backoff + 1);
+        if (failure instanceof HttpStatusException) {
+            delay = Math.max(delay, ((HttpStatusException) failure).getRetryAfterMillis());
+        }
+        return delay;
+    }
+
+    protected void sleep(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+
+    /**
+     * Parses a Retry-After header, given either as delay-seconds or as an HTTP date.
+     *
+     * @return the requested delay in milliseconds, or -1 if the header is absent or unreadable
+     */
+    public static long parseRetryAfter(String header) {
+        if (header == null || header.trim().isEmpty()) {
+            return -1;
+        }
+        String value = header.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime retryAt = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, retryAt.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException ignored) {
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package tz.go.moh.ucs.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Run-wide counters (time spent, requests made, bytes moved, ...) that are logged at the end of a synchronization run.
+ * Names are dotted, e.g. {@code hfr.retry.waiting_ms}; time values are kept in milliseconds.
+ */
+public class SyncMetrics {
+    private static final Logger LOGGER = Logger.getLogger(SyncMetrics.class.getName());
+
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentSkipListMap<>();
+
+    private SyncMetrics() {
+
+    }
+
+    public static void add(String name, long value) {
+        COUNTERS.computeIfAbsent(name, key -> new LongAdder()).add(value);
+    }
+
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    public static long get(String name) {
+        LongAdder counter = COUNTERS.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    public static void reset() {
+        COUNTERS.clear();
+    }
+
+    public static void logSummary() {
+        StringBuilder summary = new StringBuilder("Run metrics:");
+        for (Map.Entry<String, LongAdder> entry : COUNTERS.entrySet()) {
+            summary.append(System.lineSeparator()).append("  ").append(entry.getKey()).append(" = ").append(entry.getValue().sum());
+        }
+        LOGGER.info(summary.toString());
+    }
+}
@@ -0,0 +1,94 @@
+package tz.go.moh.ucs.util;
+
+import java.util.logging.Logger;
+
+/**
+ * Client-side token bucket that paces requests to a remote system. Tokens refill at the current rate up to
+ * {@code burst}; a caller that finds the bucket empty reserves the next token and waits until it is due, so
+ * concurrent callers are served in arrival order at the configured rate.
+ * <p>
+ * The rate adapts to the server: each throttling response ({@link #onThrottled()}) halves it, down to
+ * {@code minRequestsPerSecond}, and each successful response ({@link #onSuccess()}) raises it again by a
+ * twentieth of the configured rate, so it settles near the highest rate the server sustains.
+ * A configured rate of zero or less disables limiting.
+ */
+public class TokenBucketRateLimiter {
+    private static final Logger LOGGER = Logger.getLogger(TokenBucketRateLimiter.class.getName());
+
+    private final String name;
+    private final double maxRequestsPerSecond;
+    private final double minRequestsPerSecond;
+    private final double burst;
+
+    private double requestsPerSecond;
+    private double tokens;
+    private long lastRefillNanos;
+
+    public TokenBucketRateLimiter(String name, double requestsPerSecond, int burst, double minRequestsPerSecond) {
+        this.name = name;
+        this.maxRequestsPerSecond = requestsPerSecond;
+        this.minRequestsPerSecond = Math.min(Math.max(minRequestsPerSecond, 0.01), Math.max(requestsPerSecond, 0.01));
+        this.burst = Math.max(1, burst);
+        this.requestsPerSecond = requestsPerSecond;
+        this.tokens = this.burst;
+        this.lastRefillNanos = nanoTime();
+    }
+
+    /**
+     * Takes a token, waiting until one is available.
+     */
+    public void acquire() throws InterruptedException {
+        if (maxRequestsPerSecond <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            tokens -= 1;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens / requestsPerSecond * 1_000_000_000L);
+        }
+        if (waitNanos > 0) {
+            SyncMetrics.add(name + ".rate_limit.waiting_ms", waitNanos / 1_000_000);
+            sleep(waitNanos);
+        }
+    }
+
+    /**
+     * The server asked us to slow down (429 or 503).
+     */
+    public synchronized void onThrottled() {
+        if (maxRequestsPerSecond <= 0) {
+            return;
+        }
+        refill();
+        requestsPerSecond = Math.max(minRequestsPerSecond, requestsPerSecond / 2);
+        SyncMetrics.increment(name + ".rate_limit.throttled");
+        LOGGER.warning(name + " is throttling requests, lowering the request rate to " + requestsPerSecond + "/s");
+    }
+
+    public synchronized void onSuccess() {
+        if (maxRequestsPerSecond <= 0 || requestsPerSecond >= maxRequestsPerSecond) {
+            return;
+        }
+        refill();
+        requestsPerSecond = Math.min(maxRequestsPerSecond, requestsPerSecond + maxRequestsPerSecond / 20);
+    }
+
+    public synchronized double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    private void refill() {
+        long now = nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefillNanos) / 1_000_000_000.0 * requestsPerSecond);
+        lastRefillNanos = now;
+    }
+
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    protected void sleep(long nanos) throws InterruptedException {
+        Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+    }
+}
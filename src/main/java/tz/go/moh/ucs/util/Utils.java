@@ -2,17 +2,17 @@ package tz.go.moh.ucs.util;
 
 import tz.go.moh.ucs.domain.Location;
 import tz.go.moh.ucs.domain.LocationCSVRow;
+import tz.go.moh.ucs.domain.LocationOperation;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static tz.go.moh.ucs.Main.*;
 import static tz.go.moh.ucs.util.CSVReaderUtil.readCsvFromResources;
 import static tz.go.moh.ucs.util.CapitalizeUtil.capitalizeWords;
-import static tz.go.moh.ucs.util.OpenMrsCallsUtils.updateChildLocationParent;
-import static tz.go.moh.ucs.util.OpenMrsCallsUtils.updateLocationName;
 
 public class Utils {
     private static final Logger LOGGER = Logger.getLogger(Utils.class.getName());
@@ -26,28 +26,40 @@ public class Utils {
         }
 
         // First, try to find an existing location by its unique code.
-        Location existing = findLocationByCode(code);
+        Location existing = findLocationByCode(code, tag);
+        LocationOperation operation = planLocation(existing, parentLocation, name, code, tag);
+        if (operation == null) {
+            return existing;
+        }
+        return applyLocationOperation(operation, existing, parentLocation);
+    }
+
+    /**
+     * Decides, without writing anything, what it takes for a location to exist with the given name and parent.
+     *
+     * @param existing the location found by the code and tag, see {@link #findLocationByCode(String, String)}, or
+     *                 null if there is none
+     * @return the write to make, or null if there is nothing to write
+     */
+    public static LocationOperation planLocation(Location existing, Location parentLocation, String name, String code, String tag) {
+        if (code == null || code.isEmpty()) {
+            return null;
+        }
+
         if (existing != null) {
-            // Check if the location already has the expected tag.
-            if (existing.hasTag(tag)) {
-                if (!existing.getName().trim().equals(name.trim())) {
-                    updateLocationName(existing, name);
-                }
-                if (existing.getParentLocation() == null && parentLocation != null) {
-                    LOGGER.warning("Location found by code " + code + " name = " + name + " but has no parent (expected: " + parentLocation.getLocationId() + " | " + parentLocation.getName() + "). Updating the location parent.");
-                    updateChildLocationParent(existing, parentLocation.getLocationId());
-                } else if (existing.getParentLocation() != null && parentLocation != null && !existing.getParentLocation().getLocationId().equals(parentLocation.getLocationId())) {
-                    LOGGER.warning("Location found by code " + code + " name = " + name + " but parent mismatch (expected: " + parentLocation.getLocationId() + " | " + parentLocation.getName() + "). Updating the location parent.");
-                    updateChildLocationParent(existing, parentLocation.getLocationId());
-                }
-            } else {
-                // Optionally, add the tag to the existing location if appropriate:
-                // existing.getTags().add(tag);
-                // return existing;
-                // Or log a warning and continue to create a new location.
-                LOGGER.warning("Location found by code " + code + " name = " + name + " but tag mismatch (expected: " + tag + "). Creating a new location.");
+            String newName = existing.getName().trim().equals(name.trim()) ? null : name;
+            Location newParent = null;
+            if (existing.getParentLocation() == null && parentLocation != null) {
+                LOGGER.warning("Location found by code " + code + " name = " + name + " but has no parent (expected: " + parentLocation.getLocationId() + " | " + parentLocation.getName() + "). Updating the location parent.");
+                newParent = parentLocation;
+            } else if (existing.getParentLocation() != null && parentLocation != null && !isSameLocation(existing.getParentLocation(), parentLocation)) {
+                LOGGER.warning("Location found by code " + code + " name = " + name + " but parent mismatch (expected: " + parentLocation.getLocationId() + " | " + parentLocation.getName() + "). Updating the location parent.");
+                newParent = parentLocation;
             }
-            return existing;
+            if (newName == null && newParent == null) {
+                return null;
+            }
+            return LocationOperation.update(existing, code, tag, newName, newParent);
         }
 
         if (parentLocation == null && !tag.equalsIgnoreCase("Region")) {
@@ -56,6 +68,42 @@ public class Utils {
         }
 
         // No matching location was found; create a new location.
+        return LocationOperation.create(code, tag, name, parentLocation);
+    }
+
+    /**
+     * Makes the write decided by {@link #planLocation}, keeping the run's repository up to date.
+     */
+    public static Location applyLocationOperation(LocationOperation operation, Location existing, Location parent) throws Exception {
+        return applyLocationOperation(operation, existing, parent, repository);
+    }
+
+    /**
+     * Makes the write decided by {@link #planLocation}.
+     *
+     * @param existing   the location to update; ignored when creating
+     * @param parent     the parent the operation refers to, resolved to a location that exists in OpenMRS
+     * @param repository the repository to record the written location in
+     * @return the updated or created location, or null if creating it failed; the location that already held the code
+     * and tag when the new one turns out to duplicate it
+     */
+    public static Location applyLocationOperation(LocationOperation operation, Location existing, Location parent, LocationRepository repository) throws Exception {
+        if (!operation.isCreate()) {
+            // Name and parent changes go to OpenMRS together, in one request
+            LocationWriteBuffer writes = new LocationWriteBuffer(repository);
+            if (operation.isRename()) {
+                writes.rename(existing, operation.getName());
+            }
+            if (operation.isReparent() && parent != null) {
+                writes.reparent(existing, parent.getLocationId());
+            }
+            writes.flush();
+            return existing;
+        }
+
+        String code = operation.getCode();
+        String tag = operation.getTag();
+        String name = operation.getName();
         Map<String, String> attributes = new HashMap<>();
 
         if (tag.equalsIgnoreCase("facility"))
@@ -64,40 +112,60 @@ public class Utils {
             attributes.put(CODE_LOCATION_ATTRIBUTE_UUID, code);
 
         Set<String> tags = new HashSet<>(Collections.singletonList(tag));
-        String parentUuid = (parentLocation != null) ? parentLocation.getLocationId() : null;
+        String parentUuid = (parent != null) ? parent.getLocationId() : null;
         Location newLoc = createNewLocation(name, parentUuid, tags, attributes);
 
-        if (newLoc != null) {
-            LOGGER.info("Created new " + tag + ": " + name);
-            allLocations.add(newLoc);
-            if (newLoc.getLocationId() != null) {
-                locationCache.put(newLoc.getLocationId().toLowerCase(), newLoc);
-            }
-            if (newLoc.getAttributes() != null && newLoc.getAttributes().get("Code") != null) {
-                codeCache.put(((String) newLoc.getAttributes().get("Code")).toLowerCase(), newLoc);
-            } else if (newLoc.getAttributes() != null && newLoc.getAttributes().get("HFR Code") != null) {
-                codeCache.put(((String) newLoc.getAttributes().get("HFR Code")).toLowerCase(), newLoc);
-            }
-        } else {
+        if (newLoc == null) {
             LOGGER.info("Failed Creating new " + tag + ": " + name);
+            return null;
+        }
+        LOGGER.info("Created new " + tag + ": " + name);
+        Location registered = repository.add(newLoc);
+        if (registered != newLoc) {
+            // Another writer created the same location first; its children go under the one that holds the code
+            LOGGER.warning("Created " + tag + " " + code + " (" + newLoc.getLocationId() + ") duplicates " + registered.getLocationId());
+            SyncMetrics.increment("reconcile.duplicates");
         }
-        return newLoc;
+        return registered;
     }
 
 
+    /**
+     * Parents are linked to their canonical instances, so a reference check settles most comparisons;
+     * the uuid comparison covers locations that have not been linked (yet).
+     */
+    public static boolean isSameLocation(Location a, Location b) {
+        if (a == b) {
+            return true;
+        }
+        return a != null && b != null && a.getLocationId() != null && a.getLocationId().equalsIgnoreCase(b.getLocationId());
+    }
+
     public static Location findLocationByCode(String code) {
-        if (code == null) return null;
-        return codeCache.get(code.toLowerCase());
+        return repository.findByCode(code);
+    }
+
+    /**
+     * Finds the location with the given code and tag, so a ward and a village sharing a code are told apart.
+     */
+    public static Location findLocationByCode(String code, String tag) {
+        return repository.findByCode(code, tag);
     }
 
 
     public static Location findLocationByUuid(String uuid) {
-        if (uuid == null) return null;
-        return locationCache.get(uuid.toLowerCase());
+        return repository.findByUuid(uuid);
+    }
+
+    /**
+     * @return the locations whose parent has the given uuid
+     */
+    public static Set<Location> findChildLocations(String parentUuid) {
+        return repository.findChildren(parentUuid);
     }
 
     /**
-     * Imports hamlet locations from a CSV file.
+     * Imports hamlet locations from a CSV file, creating the hamlets concurrently on the {@code LOCATION_SCHEDULER}.
      */
     public static void importHamletLocationsFromCSV(String resourceName) {
         List<LocationCSVRow> rows = null;
@@ -111,11 +179,11 @@ public class Utils {
                 try {
                     Location villageLocation = null;
                     if (row.getVillageCode() != null && !row.getVillageCode().isEmpty()) {
-                        villageLocation = findLocationByCode(row.getVillageCode());
+                        villageLocation = findLocationByCode(row.getVillageCode(), "Village");
                     }
 
                     if (villageLocation != null && row.getHamlet() != null && !row.getHamlet().isEmpty()) {
-                        ensureLocationExists(villageLocation, capitalizeWords(row.getHamlet() + " - " + row.getVillage() + " - " + row.getWard()), row.getHamletCode(), "Hamlet");
+                        LOCATION_SCHEDULER.schedule(CompletableFuture.completedFuture(villageLocation), capitalizeWords(row.getHamlet() + " - " + row.getVillage() + " - " + row.getWard()), row.getHamletCode(), "Hamlet");
                     } else {
                         LOGGER.info("Village not found");
                     }
@@ -123,6 +191,7 @@ public class Utils {
                     LOGGER.log(Level.SEVERE, "Error importing location row", e);
                 }
             }
+            LOCATION_SCHEDULER.awaitAll();
         }
     }
 }
@@ -1,38 +1,67 @@
 package tz.go.moh.ucs;
 
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.MockedStatic;
 import tz.go.moh.ucs.service.HfrService;
+import tz.go.moh.ucs.util.SyncMetrics;
 
-import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.lang.reflect.Field;
-import java.net.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mockStatic;
 
 /**
  * HfrServiceTest contains tests for the HfrService static methods.
- * It simulates network responses by using a dummy URLStreamHandlerFactory.
+ * It simulates HFR with a MockWebServer that the service's base URLs are pointed at.
  */
 public class HfrServiceTest {
 
+    private static MockWebServer server;
+    private static String healthFacilitiesUrl;
+    private static String hierarchyUrl;
+
     @BeforeAll
-    public static void setupURLStreamHandlerFactory() {
-        try {
-            // Reset any previously set URLStreamHandlerFactory using reflection
-            Field factoryField = URL.class.getDeclaredField("factory");
-            factoryField.setAccessible(true);
-            factoryField.set(null, null);
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to reset URLStreamHandlerFactory", e);
-        }
+    public static void startDummyHfr() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new DummyHfrDispatcher());
+        server.start();
 
-        // Set our dummy factory to intercept HTTP requests
-        URL.setURLStreamHandlerFactory(new DummyURLStreamHandlerFactory());
+        healthFacilitiesUrl = HfrService.BASE_URL_GET_HEALTH_FACILITIES;
+        hierarchyUrl = HfrService.BASE_URL_GET_HIERARCHY;
+        HfrService.BASE_URL_GET_HEALTH_FACILITIES = server.url("/health-facility-list") + "?page=";
+        HfrService.BASE_URL_GET_HIERARCHY = server.url("/administrative-hierarchy") + "?page=";
+    }
+
+    @AfterAll
+    public static void stopDummyHfr() throws IOException {
+        HfrService.BASE_URL_GET_HEALTH_FACILITIES = healthFacilitiesUrl;
+        HfrService.BASE_URL_GET_HIERARCHY = hierarchyUrl;
+        server.shutdown();
+    }
+
+    @BeforeEach
+    public void forgetProcessedPages() {
+        // Every test starts as a first run, so no page is skipped as unchanged
+        HfrService.VALIDATORS.clear();
     }
 
     /**
@@ -90,76 +119,178 @@ public class HfrServiceTest {
         assertEquals("Failed to fetch data. HTTP response code: 500", exception.getMessage());
     }
 
-    // DummyHttpURLConnection class to simulate HTTP responses
-    public static class DummyHttpURLConnection extends HttpURLConnection {
-        private final int responseCode;
-        private final String responseData;
+    /**
+     * Test that fetchHealthFacilityData downloads the remaining pages concurrently but still hands
+     * their records to processHfrRecord in page order, even though later pages finish downloading first.
+     */
+    @Test
+    public void testFetchHealthFacilityDataProcessesPagesInOrder() throws Exception {
+        List<Integer> processedPages = Collections.synchronizedList(new ArrayList<>());
+        try (MockedStatic<Main> mockedMain = mockStatic(Main.class)) {
+            mockedMain.when(() -> Main.processHfrRecord(any(JSONObject.class))).thenAnswer(invocation -> {
+                JSONObject record = invocation.getArgument(0);
+                processedPages.add(record.getInt("page"));
+                return null;
+            });
 
-        protected DummyHttpURLConnection(URL u, int responseCode, String responseData) {
-            super(u);
-            this.responseCode = responseCode;
-            this.responseData = responseData;
+            HfrService.fetchHealthFacilityData(MULTI_PAGE_FIRST);
         }
 
-        @Override
-        public void disconnect() {
-            //NOT required
-        }
+        assertEquals(Arrays.asList(50, 51, 52, 53, 54), processedPages);
+    }
 
-        @Override
-        public boolean usingProxy() {
-            return false;
+    /**
+     * Test that pages whose body is identical to the last processed one are not handed to processHfrRecord again.
+     */
+    @Test
+    public void testFetchHealthFacilityDataSkipsPagesWithUnchangedBody() throws Exception {
+        List<Integer> processedPages = Collections.synchronizedList(new ArrayList<>());
+        try (MockedStatic<Main> mockedMain = mockStatic(Main.class)) {
+            mockedMain.when(() -> Main.processHfrRecord(any(JSONObject.class))).thenAnswer(invocation -> {
+                JSONObject record = invocation.getArgument(0);
+                processedPages.add(record.getInt("page"));
+                return null;
+            });
+
+            HfrService.fetchHealthFacilityData(MULTI_PAGE_FIRST);
+            HfrService.fetchHealthFacilityData(MULTI_PAGE_FIRST);
         }
 
-        @Override
-        public void connect() {
-            //NOT required
+        assertEquals(Arrays.asList(50, 51, 52, 53, 54), processedPages);
+    }
+
+    /**
+     * Test that a page on which a location failed is not remembered as processed, so the next run reconciles it
+     * again while the pages that succeeded are still skipped.
+     */
+    @Test
+    public void testFetchHealthFacilityDataRetriesPagesWithFailedLocations() throws Exception {
+        List<Integer> processedPages = Collections.synchronizedList(new ArrayList<>());
+        try (MockedStatic<Main> mockedMain = mockStatic(Main.class)) {
+            mockedMain.when(() -> Main.processHfrRecord(any(JSONObject.class))).thenAnswer(invocation -> {
+                JSONObject record = invocation.getArgument(0);
+                processedPages.add(record.getInt("page"));
+                if (record.getInt("page") == 52 && processedPages.size() <= 5) {
+                    SyncMetrics.increment("reconcile.failures");
+                }
+                return null;
+            });
+
+            HfrService.fetchHealthFacilityData(MULTI_PAGE_FIRST);
+            assertNull(HfrService.VALIDATORS.get(HfrService.HEALTH_FACILITY_FEED, 52));
+            // The feed was read to the end, so the next run starts at the first page again
+            assertEquals(1, HfrService.CHECKPOINT.nextPage(HfrService.HEALTH_FACILITY_FEED, 1));
+            HfrService.fetchHealthFacilityData(MULTI_PAGE_FIRST);
         }
 
-        @Override
-        public InputStream getInputStream() throws IOException {
-            return new ByteArrayInputStream(responseData.getBytes());
+        assertEquals(Arrays.asList(50, 51, 52, 53, 54, 52), processedPages);
+    }
+
+    /**
+     * Test that stored ETags are sent as If-None-Match and that 304 responses skip processing.
+     */
+    @Test
+    public void testFetchHealthFacilityDataSkipsNotModifiedPages() throws Exception {
+        List<Integer> processedPages = Collections.synchronizedList(new ArrayList<>());
+        try (MockedStatic<Main> mockedMain = mockStatic(Main.class)) {
+            mockedMain.when(() -> Main.processHfrRecord(any(JSONObject.class))).thenAnswer(invocation -> {
+                JSONObject record = invocation.getArgument(0);
+                processedPages.add(record.getInt("page"));
+                return null;
+            });
+
+            HfrService.fetchHealthFacilityData(ETAG_PAGE_FIRST);
+            HfrService.fetchHealthFacilityData(ETAG_PAGE_FIRST);
         }
 
-        @Override
-        public int getResponseCode() throws IOException {
-            return responseCode;
+        assertEquals(Arrays.asList(60, 61), processedPages);
+        assertEquals("\"page-60\"", HfrService.VALIDATORS.get(HfrService.HEALTH_FACILITY_FEED, 60).getEtag());
+    }
+
+    /**
+     * Test that recorded pages can be replayed without contacting HFR.
+     */
+    @Test
+    public void testRecordedSnapshotIsReplayedWithoutNetwork() throws Exception {
+        List<Integer> processedPages = Collections.synchronizedList(new ArrayList<>());
+        try (MockedStatic<Main> mockedMain = mockStatic(Main.class)) {
+            mockedMain.when(() -> Main.processHfrRecord(any(JSONObject.class))).thenAnswer(invocation -> {
+                JSONObject record = invocation.getArgument(0);
+                processedPages.add(record.getInt("page"));
+                return null;
+            });
+
+            HfrService.RECORD_SNAPSHOT = true;
+            HfrService.fetchHealthFacilityData(MULTI_PAGE_FIRST);
+            HfrService.RECORD_SNAPSHOT = false;
+
+            HfrService.REPLAY_SNAPSHOT = true;
+            HfrService.fetchHealthFacilityData(MULTI_PAGE_FIRST);
+
+            // Page 999 would be a 404 from HFR; in replay mode it is looked up in the snapshot only
+            Exception exception = assertThrows(Exception.class, () -> HfrService.fetchHealthFacilityData(999));
+            assertTrue(exception instanceof FileNotFoundException);
+        } finally {
+            HfrService.RECORD_SNAPSHOT = false;
+            HfrService.REPLAY_SNAPSHOT = false;
         }
+
+        assertEquals(Arrays.asList(50, 51, 52, 53, 54, 50, 51, 52, 53, 54), processedPages);
+    }
+
+    // Pages 60..61 simulate a server that sends ETags and answers conditional requests with 304
+    private static final int ETAG_PAGE_FIRST = 60;
+    private static final int ETAG_PAGE_LAST = 61;
+
+    // Pages 50..54 simulate a multi-page listing where later pages respond faster than earlier ones
+    private static final int MULTI_PAGE_FIRST = 50;
+    private static final int MULTI_PAGE_LAST = 54;
+
+    private static int pageOf(RecordedRequest request) {
+        return Integer.parseInt(request.getRequestUrl().queryParameter("page"));
     }
 
-    // Dummy URLStreamHandlerFactory to intercept connections for testing
-    public static class DummyURLStreamHandlerFactory implements URLStreamHandlerFactory {
+    private static MockResponse response(int responseCode, String responseData) {
+        return new MockResponse().setResponseCode(responseCode).setBody(responseData);
+    }
+
+    // Dispatcher that simulates the HFR responses for each feed and page
+    public static class DummyHfrDispatcher extends Dispatcher {
         @Override
-        public URLStreamHandler createURLStreamHandler(String protocol) {
-            if ("https".equals(protocol)) {
-                return new URLStreamHandler() {
-                    @Override
-                    protected URLConnection openConnection(URL u) throws IOException {
-                        // For fetchHealthFacilityData URLs, simulate responses.
-                        if (u.toString().contains("health-facility-list")) {
-                            // Simulate failure when the URL contains "page=999"
-                            if (u.toString().contains("page=999")) {
-                                return new DummyHttpURLConnection(u, 404, "Not Found");
-                            } else {
-                                // Simulate a 200 OK response with minimal JSON content
-                                String json = "{\"metaData\":{\"pageCount\":1,\"currentPage\":1},\"data\":[]}";
-                                return new DummyHttpURLConnection(u, 200, json);
-                            }
-                        }
-                        // For fetchAdminHierarchData URLs, simulate responses.
-                        else if (u.toString().contains("administrative-hierarchy")) {
-                            if (u.toString().contains("page=999")) {
-                                return new DummyHttpURLConnection(u, 500, "Internal Server Error");
-                            } else {
-                                String json = "{\"metaData\":{\"pageCount\":1,\"currentPage\":1},\"data\":[]}";
-                                return new DummyHttpURLConnection(u, 200, json);
-                            }
-                        }
-                        throw new IOException("Unexpected URL: " + u);
+        public MockResponse dispatch(RecordedRequest request) {
+            String path = request.getPath();
+            // For fetchHealthFacilityData URLs, simulate responses.
+            if (path.contains("health-facility-list")) {
+                int page = pageOf(request);
+                // Simulate failure for page 999
+                if (page == 999) {
+                    return response(404, "Not Found");
+                } else if (page >= MULTI_PAGE_FIRST && page <= MULTI_PAGE_LAST) {
+                    String json = "{\"metaData\":{\"pageCount\":" + MULTI_PAGE_LAST + ",\"currentPage\":" + page
+                            + "},\"data\":[{\"page\":" + page + "}]}";
+                    return response(200, json).setHeadersDelay((MULTI_PAGE_LAST - page) * 40L, TimeUnit.MILLISECONDS);
+                } else if (page >= ETAG_PAGE_FIRST && page <= ETAG_PAGE_LAST) {
+                    String etag = "\"page-" + page + "\"";
+                    if (etag.equals(request.getHeader("If-None-Match"))) {
+                        return new MockResponse().setResponseCode(304);
                     }
-                };
+                    String json = "{\"metaData\":{\"pageCount\":" + ETAG_PAGE_LAST + ",\"currentPage\":" + page
+                            + "},\"data\":[{\"page\":" + page + "}]}";
+                    return response(200, json).setHeader("ETag", etag);
+                } else {
+                    // Simulate a 200 OK response with minimal JSON content
+                    return response(200, "{\"metaData\":{\"pageCount\":1,\"currentPage\":1},\"data\":[]}");
+                }
+            }
+            // For fetchAdminHierarchData URLs, simulate responses.
+            else if (path.contains("administrative-hierarchy")) {
+                if (pageOf(request) == 999) {
+                    return response(500, "Internal Server Error");
+                } else {
+                    return response(200, "{\"metaData\":{\"pageCount\":1,\"currentPage\":1},\"data\":[]}");
+                }
             }
-            return null; // Use default for other protocols
+            return response(404, "Unexpected URL: " + path);
         }
     }
-}
\ No newline at end of file
+}
@@ -1,6 +1,11 @@
 package tz.go.moh.ucs;
 
 
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.jupiter.api.Test;
@@ -8,18 +13,16 @@ import org.mockito.MockedStatic;
 import tz.go.moh.ucs.domain.Location;
 import tz.go.moh.ucs.service.HfrService;
 import tz.go.moh.ucs.util.FetchLocationsHelper;
+import tz.go.moh.ucs.util.LocationRepository;
 import tz.go.moh.ucs.util.OpenMrsCallsUtils;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.*;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
@@ -41,6 +44,25 @@ class MainTest {
         }
     }
 
+    @Test
+    void fetchHfrDataShouldResumeFromCheckpointOnRetry() {
+        try (MockedStatic<HfrService> mockedStatic = mockStatic(HfrService.class)) {
+            // The first attempt completes three pages and then fails
+            mockedStatic.when(() -> HfrService.fetchHealthFacilityData(1)).thenAnswer(invocation -> {
+                HfrService.CHECKPOINT.markCompleted(HfrService.HEALTH_FACILITY_FEED, 3);
+                throw new Exception("Failed to fetch data. HTTP response code: 502");
+            });
+
+            Main.fetchHfrData(1);
+
+            // The retry continues with page 4 instead of starting over
+            mockedStatic.verify(() -> HfrService.fetchHealthFacilityData(1), times(1));
+            mockedStatic.verify(() -> HfrService.fetchHealthFacilityData(4), times(1));
+        } finally {
+            HfrService.CHECKPOINT.clear(HfrService.HEALTH_FACILITY_FEED);
+        }
+    }
+
     @Test
     void fetchHfrAdminHierarchyDataShouldCallStaticMethodOnce() {
         try (MockedStatic<HfrService> mockedStatic = mockStatic(HfrService.class)) {
@@ -85,8 +107,7 @@ class MainTest {
             Main.processAdminHierarchyData(mockResponse);
         }
 
-        assertNotNull(Main.locationCache);
-        assertNotNull(Main.codeCache);
+        assertNotNull(Main.repository);
     }
 
     @Test
@@ -117,8 +138,7 @@ class MainTest {
         }
 
 
-        assertNotNull(Main.locationCache);
-        assertNotNull(Main.codeCache);
+        assertNotNull(Main.repository);
     }
 
     @Test
@@ -130,41 +150,15 @@ class MainTest {
         attributes.put("attributeType1", "value1");
 
         try (MockedStatic<OpenMrsCallsUtils> mockedOpenMrs = mockStatic(OpenMrsCallsUtils.class)) {
-            HttpURLConnection dummyConnection = new HttpURLConnection(new URL("http://dummy-url")) {
-                @Override
-                public void disconnect() {
-                    //Not Required
-                }
-
-                @Override
-                public boolean usingProxy() {
-                    return false;
-                }
-
-                @Override
-                public void connect() {
-                    //Not Required
-                }
-
-                @Override
-                public int getResponseCode() {
-                    return HttpURLConnection.HTTP_CREATED;
-                }
-
-                @Override
-                public InputStream getInputStream() {
-                    String json = "{\"uuid\": \"dummy-uuid\", \"name\": \"" + name + "\"}";
-                    return new ByteArrayInputStream(json.getBytes());
-                }
-
-                @Override
-                public OutputStream getOutputStream() {
-                    return new ByteArrayOutputStream();
-                }
-            };
-
-            mockedOpenMrs.when(() -> OpenMrsCallsUtils.createConnection(anyString(), eq("POST")))
-                    .thenReturn(dummyConnection);
+            String json = "{\"uuid\": \"dummy-uuid\", \"name\": \"" + name + "\"}";
+            mockedOpenMrs.when(() -> OpenMrsCallsUtils.callOpenMrs(anyString(), eq("POST"), any(JSONObject.class)))
+                    .thenAnswer(invocation -> new Response.Builder()
+                            .request(new Request.Builder().url("http://dummy-url").build())
+                            .protocol(Protocol.HTTP_1_1)
+                            .code(HttpURLConnection.HTTP_CREATED)
+                            .message("Created")
+                            .body(ResponseBody.create(json, MediaType.get("application/json")))
+                            .build());
 
             FetchLocationsHelper fetchLocationsHelper = new FetchLocationsHelper();
             Location location = Main.createNewLocation(name, parentUuid, tags, attributes);
@@ -175,4 +169,33 @@ class MainTest {
             assertEquals(attributes, location.getAttributes());
         }
     }
+
+    @Test
+    void initializeCachesLinksRowsToCanonicalParents() {
+        Location region = new Location("region-uuid", "Dodoma", null, null, null, null, null);
+        region.addTag("Region");
+        region.addAttribute("Code", "TZ.CN.DO");
+        // The listing only carries a stub of the parent
+        Location regionStub = new Location("REGION-UUID", "Dodoma", null, null);
+        Location district = new Location("district-uuid", "Bahi", null, null, regionStub, null, null);
+        district.addTag("District");
+        district.addAttribute("Code", "TZ.CN.DO.BA");
+        Location orphan = new Location("orphan-uuid", "Orphan", null, new Location("missing-uuid", "Missing", null, null));
+        orphan.addTag("Ward");
+
+        LocationRepository repository = Main.repository;
+        Main.repository = new LocationRepository();
+        try {
+            Main.initializeCaches(Arrays.asList(region, district, orphan));
+
+            assertSame(region, Main.repository.findByUuid("region-uuid"));
+            assertSame(district, Main.repository.findByCode("tz.cn.do.ba"));
+            assertTrue(Main.repository.findChildren("region-uuid").contains(district));
+        } finally {
+            Main.repository = repository;
+        }
+        assertSame(region, district.getParentLocation());
+        // A parent that is not in the listing keeps its stub
+        assertEquals("missing-uuid", orphan.getParentLocation().getLocationId());
+    }
 }
@@ -126,6 +126,19 @@ public class LocationTest {
         assertNull(location.getAttribute("type"));
     }
 
+    @Test
+    public void testAttributeUuids() {
+        Location location = new Location();
+        location.addAttribute("Code", "TZ.V1", "code-type-uuid", "code-attribute-uuid");
+        location.addAttribute("size", "Large");
+
+        assertEquals("TZ.V1", location.getAttribute("Code"));
+        assertEquals("code-type-uuid", location.getAttributeTypeUuid("Code"));
+        assertEquals("code-attribute-uuid", location.getAttributeUuid("code-type-uuid"));
+        assertNull(location.getAttributeTypeUuid("size"));
+        assertNull(location.getAttributeUuid("other-type-uuid"));
+    }
+
     @Test
     public void testChainMethods() {
         Address address = new Address();
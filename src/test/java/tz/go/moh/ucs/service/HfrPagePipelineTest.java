@@ -0,0 +1,78 @@
+package tz.go.moh.ucs.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HfrPagePipelineTest {
+
+    private static HfrPage page(int number) {
+        return new HfrPage(number, new byte[0]);
+    }
+
+    @Test
+    void pagesAreTakenInOrderEvenWhenLaterPagesDownloadFaster() throws Exception {
+        HfrPagePipeline pipeline = new HfrPagePipeline(1, 6, 3, 2, number -> {
+            Thread.sleep((6 - number) * 20L);
+            return page(number);
+        });
+        pipeline.start();
+
+        List<Integer> taken = new ArrayList<>();
+        HfrPage next;
+        while ((next = pipeline.take()) != null) {
+            taken.add(next.getPageNumber());
+        }
+        pipeline.close();
+
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), taken);
+    }
+
+    @Test
+    void fetcherBlocksWhenTheQueueIsFull() throws Exception {
+        AtomicInteger fetched = new AtomicInteger();
+        HfrPagePipeline pipeline = new HfrPagePipeline(1, 20, 1, 2, number -> {
+            fetched.incrementAndGet();
+            return page(number);
+        });
+        pipeline.start();
+        Thread.sleep(300);
+
+        // Two queued pages, one waiting to be queued and at most one more in flight
+        assertTrue(fetched.get() <= 4, "fetched " + fetched.get() + " pages without any being taken");
+
+        assertEquals(1, pipeline.take().getPageNumber());
+        pipeline.close();
+    }
+
+    @Test
+    void fetchFailureIsRaisedAfterTheEarlierPages() throws Exception {
+        HfrPagePipeline pipeline = new HfrPagePipeline(1, 5, 2, 4, number -> {
+            if (number == 3) {
+                throw new Exception("Failed to fetch data. HTTP response code: 503");
+            }
+            return page(number);
+        });
+        pipeline.start();
+
+        assertEquals(1, pipeline.take().getPageNumber());
+        assertEquals(2, pipeline.take().getPageNumber());
+        Exception exception = assertThrows(Exception.class, pipeline::take);
+        assertEquals("Failed to fetch data. HTTP response code: 503", exception.getMessage());
+        pipeline.close();
+    }
+
+    @Test
+    void emptyRangeEndsImmediately() throws Exception {
+        HfrPagePipeline pipeline = new HfrPagePipeline(2, 1, 2, 2, number -> page(number));
+        pipeline.start();
+
+        assertNull(pipeline.take());
+        pipeline.close();
+    }
+}
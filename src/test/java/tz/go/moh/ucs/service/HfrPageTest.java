@@ -0,0 +1,57 @@
+package tz.go.moh.ucs.service;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import tz.go.moh.ucs.util.PageValidatorStore.Validators;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HfrPageTest {
+
+    private static final String BODY = "{\"data\": [{\"Fac_IDNumber\": \"F1\"}, {\"Fac_IDNumber\": \"F2\"}],"
+            + " \"metaData\": {\"currentPage\": 3, \"pageCount\": 7}}";
+
+    @Test
+    void decodeHandsEachRecordToTheProcessorAndReadsTheMetaData() throws Exception {
+        HfrPage page = new HfrPage(3, BODY.getBytes(StandardCharsets.UTF_8), "\"etag\"", null, "sha");
+        assertEquals(-1, page.getPageCount());
+        assertNull(page.getValidators());
+
+        List<String> processed = new ArrayList<>();
+        page.decode(record -> processed.add(record.getString("Fac_IDNumber")));
+
+        assertEquals(2, processed.size());
+        assertEquals("F1", processed.get(0));
+        assertEquals(3, page.getPageNumber());
+        assertEquals(7, page.getPageCount());
+        assertEquals("\"etag\"", page.getValidators().getEtag());
+        assertEquals(7, page.getValidators().getPageCount());
+    }
+
+    @Test
+    void aPageWithoutValidatorsHasNoneAfterDecoding() throws Exception {
+        HfrPage page = new HfrPage(3, BODY.getBytes(StandardCharsets.UTF_8));
+
+        page.decode(record -> { });
+
+        assertEquals(7, page.getPageCount());
+        assertNull(page.getValidators());
+    }
+
+    @Test
+    void anUnchangedPageHasNothingToDecode() throws Exception {
+        HfrPage page = HfrPage.unchanged(4, new Validators(null, null, "sha", 9));
+        List<JSONObject> processed = new ArrayList<>();
+
+        page.decode(processed::add);
+
+        assertTrue(page.isUnchanged());
+        assertTrue(processed.isEmpty());
+        assertEquals(9, page.getPageCount());
+        assertEquals(4, page.getPageNumber());
+    }
+}
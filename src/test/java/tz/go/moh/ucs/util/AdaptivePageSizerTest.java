@@ -0,0 +1,72 @@
+package tz.go.moh.ucs.util;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AdaptivePageSizerTest {
+
+    @BeforeEach
+    void resetMetrics() {
+        SyncMetrics.reset();
+    }
+
+    @Test
+    void timeoutsHalveTheSizeDownToTheMinimum() {
+        AdaptivePageSizer sizer = new AdaptivePageSizer("test", 10000, 1000, 20000, 30000);
+        sizer.onTimeout();
+        assertEquals(5000, sizer.getSize());
+        sizer.onTimeout();
+        sizer.onTimeout();
+        sizer.onTimeout();
+        assertEquals(1000, sizer.getSize());
+    }
+
+    @Test
+    void slowFullPagesShrinkTowardsTheTargetLatency() {
+        AdaptivePageSizer sizer = new AdaptivePageSizer("test", 10000, 1000, 20000, 30000);
+        sizer.onSuccess(10000, 10000, 120000);
+        assertEquals(2500, sizer.getSize());
+    }
+
+    @Test
+    void fastFullPagesGrowUpToTheMaximum() {
+        AdaptivePageSizer sizer = new AdaptivePageSizer("test", 10000, 1000, 20000, 30000);
+        sizer.onSuccess(10000, 10000, 2000);
+        assertEquals(15001, sizer.getSize());
+        sizer.onSuccess(15001, 15001, 2000);
+        assertEquals(20000, sizer.getSize());
+    }
+
+    @Test
+    void shortOrSmallerPagesDoNotChangeTheSize() {
+        AdaptivePageSizer sizer = new AdaptivePageSizer("test", 10000, 1000, 20000, 30000);
+        // The last page of a listing is short, however quickly it came back
+        sizer.onSuccess(10000, 12, 10);
+        // A page cut short to fit a range was not a full-size sample
+        sizer.onSuccess(400, 400, 10);
+        assertEquals(10000, sizer.getSize());
+    }
+
+    @Test
+    void pagesRequestedBeforeATimeoutDoNotGrowTheSizeAgain() {
+        AdaptivePageSizer sizer = new AdaptivePageSizer("test", 10000, 1000, 20000, 30000);
+        sizer.onTimeout();
+        // Requested at the old size by a concurrent worker, finished after the timeout
+        sizer.onSuccess(10000, 10000, 10);
+        assertEquals(5000, sizer.getSize());
+    }
+
+    @Test
+    void requestedSizesAreRecordedInTheRunMetrics() {
+        AdaptivePageSizer sizer = new AdaptivePageSizer("test", 10000, 1000, 20000, 30000);
+        sizer.nextSize();
+        sizer.nextSize();
+        sizer.onTimeout();
+        sizer.nextSize();
+
+        assertEquals(2, SyncMetrics.get("test.page_size.10000"));
+        assertEquals(1, SyncMetrics.get("test.page_size.5000"));
+    }
+}
@@ -0,0 +1,85 @@
+package tz.go.moh.ucs.util;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBreakerTest {
+
+    private long now;
+
+    private final CircuitBreaker breaker = new CircuitBreaker("test", 3, 1000) {
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    };
+
+    @BeforeEach
+    void resetMetrics() {
+        SyncMetrics.reset();
+    }
+
+    @Test
+    void opensAfterConsecutiveFailures() {
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertFalse(breaker.isOpen());
+
+        breaker.recordFailure();
+        assertTrue(breaker.isOpen());
+        assertEquals(1, SyncMetrics.get("test.circuit_breaker.opened"));
+    }
+
+    @Test
+    void successResetsTheFailureCount() {
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+
+        assertFalse(breaker.isOpen());
+    }
+
+    @Test
+    void letsATrialAttemptThroughAfterTheOpenPeriod() {
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordFailure();
+
+        now += 1000;
+        assertFalse(breaker.isOpen());
+
+        // A failed trial opens the breaker again straight away
+        breaker.recordFailure();
+        assertTrue(breaker.isOpen());
+        assertEquals(2, SyncMetrics.get("test.circuit_breaker.opened"));
+
+        now += 1000;
+        breaker.recordSuccess();
+        assertFalse(breaker.isOpen());
+    }
+
+    @Test
+    void letsOnlyOneTrialAttemptThroughAtATime() {
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertFalse(breaker.tryAcquire());
+
+        now += 1000;
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        assertTrue(breaker.isOpen());
+
+        // A trial without a verdict hands the trial to the next caller
+        breaker.releaseTrial();
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+
+        breaker.recordSuccess();
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+    }
+}
@@ -4,10 +4,24 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import tz.go.moh.ucs.domain.Location;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.SocketTimeoutException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -68,6 +82,18 @@ public class FetchLocationsHelperTest {
         // If Location stores attributes, you could verify that here; for now we just ensure no exception
     }
 
+    @Test
+    public void testMakeLocationKeepsAttributeUuids() throws JSONException {
+        String json = "{\"uuid\": \"test-uuid\", \"name\": \"Test\", \"tags\": [], \"attributes\": [{\"uuid\": \"attribute-uuid\"," +
+                " \"display\": \"Code: TZ.V1\", \"attributeType\": {\"uuid\": \"code-type-uuid\"}, \"voided\": false}]}";
+
+        Location loc = new FetchLocationsHelper().makeLocation(json);
+
+        assertEquals("TZ.V1", loc.getAttribute("Code"));
+        assertEquals("code-type-uuid", loc.getAttributeTypeUuid("Code"));
+        assertEquals("attribute-uuid", loc.getAttributeUuid("code-type-uuid"));
+    }
+
     // Test makeLocation(String) with parent location
     @Test
     public void testMakeLocationWithParent() throws JSONException {
@@ -227,4 +253,249 @@ public class FetchLocationsHelperTest {
 
         assertFalse(result);
     }
-}
\ No newline at end of file
+
+    /**
+     * Serves a fixed list of locations in pages of two (openmrs.fetch_page_size in the test configuration).
+     */
+    private static class PagedFetchLocationsHelper extends FetchLocationsHelper {
+        private final int locationCount;
+        private final boolean reportTotalCount;
+        final Set<Integer> requestedStartIndexes = ConcurrentHashMap.newKeySet();
+        final Map<Integer, AtomicInteger> failuresLeft = new ConcurrentHashMap<>();
+        final Map<Integer, String> dateChanged = new ConcurrentHashMap<>();
+        final Set<String> fetchedLocations = ConcurrentHashMap.newKeySet();
+        final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+        final Set<Integer> timeOutAt = ConcurrentHashMap.newKeySet();
+
+        PagedFetchLocationsHelper(int locationCount, boolean reportTotalCount) {
+            this.locationCount = locationCount;
+            this.reportTotalCount = reportTotalCount;
+        }
+
+        private JSONObject row(int i, boolean indexOnly) {
+            JSONObject auditInfo = new JSONObject().put("dateCreated", "2020-01-01T08:00:00.000+0300");
+            if (dateChanged.containsKey(i)) {
+                auditInfo.put("dateChanged", dateChanged.get(i));
+            }
+            JSONObject row = new JSONObject().put(UUID, "uuid-" + i).put("auditInfo", auditInfo);
+            if (!indexOnly) {
+                row.put(NAME, "Location " + i + (dateChanged.containsKey(i) ? " (renamed)" : "")).put(TAGS, new JSONArray());
+            }
+            return row;
+        }
+
+        @Override
+        protected Reader openLocationResponse(String view, int startIndex, int limit, boolean includeTotalCount) throws Exception {
+            requestedStartIndexes.add(startIndex);
+            requests.add(startIndex + "+" + limit);
+            AtomicInteger failures = failuresLeft.get(startIndex);
+            if (failures != null && failures.getAndDecrement() > 0) {
+                throw new IOException("connection reset");
+            }
+            if (limit > 1 && timeOutAt.remove(startIndex)) {
+                throw new SocketTimeoutException("timeout");
+            }
+            JSONArray results = new JSONArray();
+            for (int i = startIndex; i < Math.min(startIndex + limit, locationCount); i++) {
+                results.put(row(i, view.equals(INDEX_VIEW)));
+            }
+            JSONObject page = new JSONObject().put("results", results);
+            if (startIndex + limit < locationCount) {
+                page.put("links", new JSONArray().put(new JSONObject().put("rel", "next")));
+            }
+            if (includeTotalCount && reportTotalCount) {
+                page.put("totalCount", locationCount);
+            }
+            return new StringReader(page.toString());
+        }
+
+        @Override
+        protected Reader openLocation(String uuid) {
+            fetchedLocations.add(uuid);
+            return new StringReader(row(Integer.parseInt(uuid.substring("uuid-".length())), false).toString());
+        }
+    }
+
+    @Test
+    public void testGetAllLocationsDownloadsRangesFromTotalCountInIndexOrder() throws JSONException {
+        PagedFetchLocationsHelper helper = new PagedFetchLocationsHelper(7, true);
+
+        List<Location> locations = helper.getAllOpenMRSlocations();
+
+        assertEquals(7, locations.size());
+        for (int i = 0; i < 7; i++) {
+            assertEquals("uuid-" + i, locations.get(i).getLocationId());
+        }
+        assertEquals(new HashSet<>(Arrays.asList(0, 2, 4, 6)), helper.requestedStartIndexes);
+    }
+
+    @Test
+    public void testGetAllLocationsFollowsNextLinksWithoutTotalCount() throws JSONException {
+        PagedFetchLocationsHelper helper = new PagedFetchLocationsHelper(5, false);
+
+        List<Location> locations = helper.getAllOpenMRSlocations();
+
+        assertEquals(5, locations.size());
+        assertEquals("uuid-4", locations.get(4).getLocationId());
+    }
+
+    @Test
+    public void testGetAllLocationsRetriesAFailedRange() throws JSONException {
+        PagedFetchLocationsHelper helper = new PagedFetchLocationsHelper(6, true);
+        helper.failuresLeft.put(2, new AtomicInteger(2));
+
+        assertEquals(6, helper.getAllOpenMRSlocations().size());
+    }
+
+    @Test
+    public void testGetAllLocationsGivesUpAfterMaxAttempts() {
+        PagedFetchLocationsHelper helper = new PagedFetchLocationsHelper(6, true);
+        helper.failuresLeft.put(4, new AtomicInteger(Integer.MAX_VALUE));
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, helper::getAllOpenMRSlocations);
+        assertTrue(e.getMessage().contains("start index 4"));
+    }
+
+    @Test
+    public void testDecodeLocationPageReadsRowsLinksAndTotalCountInOnePass() throws JSONException {
+        String jsonResponse = "{" +
+                "\"totalCount\": 25000," +
+                "\"results\": [" +
+                "    {\"uuid\": \"test-uuid1\", \"name\": \"Location1\", \"tags\": [{\"display\": \"Village\"}]," +
+                "     \"attributes\": [{\"display\": \"Code: TZ.1\", \"voided\": false}]," +
+                "     \"parentLocation\": {\"uuid\": \"parent-uuid\", \"display\": \"Parent\"}}," +
+                "    {\"uuid\": \"test-uuid2\", \"name\": \"Location2\", \"tags\": []}" +
+                "]," +
+                "\"links\": [{\"rel\": \"next\", \"uri\": \"http://openmrs/ws/rest/v1/location?startIndex=10000\"}]" +
+                "}";
+        FetchLocationsHelper helper = new FetchLocationsHelper() {
+            @Override
+            public Location makeLocation(String locationJson) {
+                throw new AssertionError("Rows must not be serialized and parsed again");
+            }
+        };
+
+        LocationPage page = helper.decodeLocationPage(new StringReader(jsonResponse));
+
+        assertEquals(2, page.getLocations().size());
+        Location first = page.getLocations().get(0);
+        assertEquals("test-uuid1", first.getLocationId());
+        assertTrue(first.hasTag("Village"));
+        assertEquals("TZ.1", first.getAttribute("Code"));
+        assertEquals("parent-uuid", first.getParentLocation().getLocationId());
+        assertTrue(page.hasNextPage());
+        assertEquals(25000, page.getTotalCount());
+    }
+
+    @Test
+    public void testDecodeLocationPageOfLastPage() throws JSONException {
+        LocationPage page = new FetchLocationsHelper().decodeLocationPage(new StringReader(
+                "{\"results\": [], \"links\": [{\"rel\": \"prev\"}]}"));
+
+        assertTrue(page.getLocations().isEmpty());
+        assertFalse(page.hasNextPage());
+        assertEquals(-1, page.getTotalCount());
+    }
+
+    @Test
+    public void testRowsWithTheSameParentShareOneParentStub() throws JSONException {
+        String jsonResponse = "{\"results\": [" +
+                "    {\"uuid\": \"child-1\", \"name\": \"Child 1\", \"tags\": [], \"parentLocation\": {\"uuid\": \"parent-uuid\", \"display\": \"Parent\"}}," +
+                "    {\"uuid\": \"child-2\", \"name\": \"Child 2\", \"tags\": [], \"parentLocation\": {\"uuid\": \"parent-uuid\", \"display\": \"Parent\"}}" +
+                "]}";
+
+        LocationPage page = new FetchLocationsHelper().decodeLocationPage(new StringReader(jsonResponse));
+
+        assertSame(page.getLocations().get(0).getParentLocation(), page.getLocations().get(1).getParentLocation());
+    }
+
+    @Test
+    public void testMakeLocationReadsAuditDates() throws JSONException {
+        Location location = new FetchLocationsHelper().makeLocation("{\"uuid\": \"test-uuid\", \"name\": \"Test\", \"tags\": []," +
+                " \"auditInfo\": {\"dateCreated\": \"2020-01-01T08:00:00.000+0300\", \"dateChanged\": null}}");
+
+        assertEquals(1577854800000L, location.getDateCreated().getTime());
+        assertNull(location.getDateEdited());
+    }
+
+    @Test
+    public void testRefreshLocationsRefetchesOnlyChangedAndNewLocations() throws JSONException {
+        PagedFetchLocationsHelper helper = new PagedFetchLocationsHelper(6, true);
+        List<Location> cached = helper.getAllOpenMRSlocations();
+        // Location 5 was deleted from the snapshot side to look new; location 2 is renamed in OpenMRS
+        cached.remove(5);
+        helper.dateChanged.put(2, "2024-05-01T10:00:00.000+0300");
+
+        List<Location> refreshed = helper.refreshLocations(cached);
+
+        assertNotNull(refreshed);
+        assertEquals(6, refreshed.size());
+        assertEquals(new HashSet<>(Arrays.asList("uuid-2", "uuid-5")), helper.fetchedLocations);
+        assertTrue(refreshed.stream().anyMatch(l -> l.getName().equals("Location 2 (renamed)")));
+        // Unchanged locations are the instances from the snapshot
+        assertSame(cached.get(0), refreshed.get(0));
+    }
+
+    @Test
+    public void testRefreshLocationsKeepsLocationsWrittenByAReplayedJournal(@TempDir Path tempDir) throws JSONException {
+        PagedFetchLocationsHelper helper = new PagedFetchLocationsHelper(6, true);
+        List<Location> cached = helper.getAllOpenMRSlocations();
+        // Location 2 was renamed by a run that stopped before saving its snapshot; location 3 changed later on
+        helper.dateChanged.put(2, "2024-05-01T10:00:00.000+0300");
+        helper.dateChanged.put(3, "2999-05-01T10:00:00.000+0300");
+        MutationJournal journal = new MutationJournal(tempDir.resolve("journal.log"), true, 1, 0);
+        // OpenMRS answered both writes at 10:00:00 its time
+        Date respondedAt = FetchLocationsHelper.parseDateTime("2024-05-01T10:00:00.000+0300");
+        journal.succeeded(journal.intendUpdate("uuid-2", new JSONObject().put("name", "Location 2 (renamed)")), "uuid-2", respondedAt);
+        journal.succeeded(journal.intendUpdate("uuid-3", new JSONObject().put("name", "Location 3 (renamed)")), "uuid-3", respondedAt);
+        journal.replay(cached);
+
+        List<Location> refreshed = helper.refreshLocations(cached, journal);
+
+        assertEquals(6, refreshed.size());
+        assertEquals(Collections.singleton("uuid-3"), helper.fetchedLocations);
+        assertSame(cached.get(2), refreshed.get(2));
+        assertEquals("Location 2 (renamed)", refreshed.get(2).getName());
+        assertNotNull(refreshed.get(2).getDateEdited());
+    }
+
+    @Test
+    public void testRefreshLocationsDropsLocationsNoLongerInOpenMrs() throws JSONException {
+        List<Location> cached = new PagedFetchLocationsHelper(6, true).getAllOpenMRSlocations();
+
+        List<Location> refreshed = new PagedFetchLocationsHelper(4, true).refreshLocations(cached);
+
+        assertEquals(4, refreshed.size());
+    }
+
+    @Test
+    public void testRefreshLocationsGivesUpWhenTooMuchChanged() throws JSONException {
+        PagedFetchLocationsHelper helper = new PagedFetchLocationsHelper(6, true);
+        List<Location> cached = helper.getAllOpenMRSlocations();
+        for (int i = 0; i < 4; i++) {
+            helper.dateChanged.put(i, "2024-05-01T10:00:00.000+0300");
+        }
+
+        assertNull(helper.refreshLocations(cached));
+        assertTrue(helper.fetchedLocations.isEmpty());
+    }
+
+    @Test
+    public void testGetAllLocationsShrinksThePageAfterATimeout() throws JSONException {
+        SyncMetrics.reset();
+        PagedFetchLocationsHelper helper = new PagedFetchLocationsHelper(6, true);
+        helper.timeOutAt.add(2);
+
+        List<Location> locations = helper.getAllOpenMRSlocations();
+
+        assertEquals(6, locations.size());
+        for (int i = 0; i < 6; i++) {
+            assertEquals("uuid-" + i, locations.get(i).getLocationId());
+        }
+        // The request after the timeout asks for one row. A fast page fetched concurrently may grow the size back
+        // before the timed-out page is retried, so which request that is depends on timing.
+        assertTrue(helper.requests.contains("2+2"));
+        assertTrue(helper.requests.stream().filter(request -> request.startsWith("2+")).count() >= 2);
+        assertTrue(SyncMetrics.get("openmrs.locations.page_size.1") >= 1);
+    }
+}
@@ -0,0 +1,102 @@
+package tz.go.moh.ucs.util;
+
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpTransportTest {
+
+    private static final String BODY = "{\"results\":[" + String.join(",", Collections.nCopies(200, "{\"name\":\"Dodoma\"}")) + "]}";
+
+    private MockWebServer server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        SyncMetrics.reset();
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    void sharesOneClientAcrossCallers() {
+        assertSame(HttpTransport.client(), HttpTransport.client());
+        assertSame(HttpTransport.apacheClient(), HttpTransport.apacheClient());
+    }
+
+    @Test
+    void reusesTheConnectionForConsecutiveRequests() throws Exception {
+        server.enqueue(new MockResponse().setBody("first"));
+        server.enqueue(new MockResponse().setBody("second"));
+
+        for (int i = 0; i < 2; i++) {
+            try (Response response = HttpTransport.execute(HttpTransport.request(server.url("/").toString(), "test").build())) {
+                response.body().string();
+            }
+        }
+
+        assertEquals(0, server.takeRequest().getSequenceNumber());
+        assertEquals(1, server.takeRequest().getSequenceNumber());
+        assertEquals(2, SyncMetrics.get("test.requests"));
+        assertEquals(1, SyncMetrics.get("test.connections.opened"));
+        assertEquals(1, SyncMetrics.get("test.connections.reused"));
+    }
+
+    @Test
+    void decodesGzipAndCountsBytesOnTheWireAndDecoded() throws Exception {
+        Buffer gzipped = gzip(BODY);
+        long wireBytes = gzipped.size();
+        server.enqueue(new MockResponse().setBody(gzipped).addHeader("Content-Encoding", "gzip"));
+
+        String decoded;
+        try (Response response = HttpTransport.execute(HttpTransport.request(server.url("/gzip").toString(), "test").build())) {
+            decoded = IOUtils.toString(HttpTransport.counting(response.body().byteStream(), "test.bytes_decoded"), StandardCharsets.UTF_8);
+        }
+
+        assertEquals(BODY, decoded);
+        assertEquals("gzip", server.takeRequest().getHeader("Accept-Encoding"));
+        assertEquals(wireBytes, SyncMetrics.get("test.bytes_received"));
+        assertEquals(BODY.length(), SyncMetrics.get("test.bytes_decoded"));
+    }
+
+    @Test
+    void recordsPoolMetrics() throws Exception {
+        server.enqueue(new MockResponse().setBody("ok"));
+        try (Response response = HttpTransport.execute(HttpTransport.request(server.url("/").toString(), "test").build())) {
+            response.body().string();
+        }
+
+        HttpTransport.recordPoolMetrics();
+
+        assertTrue(SyncMetrics.get("http.pool.connections") >= 1);
+        assertTrue(SyncMetrics.get("http.pool.idle_connections") >= 1);
+    }
+
+    private static Buffer gzip(String body) throws IOException {
+        Buffer buffer = new Buffer();
+        try (BufferedSink sink = Okio.buffer(new GzipSink(buffer))) {
+            sink.writeUtf8(body);
+        }
+        return buffer;
+    }
+}
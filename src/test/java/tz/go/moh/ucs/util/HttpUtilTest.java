@@ -2,6 +2,14 @@ package tz.go.moh.ucs.util;
 
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -9,7 +17,9 @@ import org.junit.jupiter.api.Test;
 import tz.go.moh.ucs.domain.HttpMethod;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.net.URISyntaxException;
+import java.util.Collections;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -154,6 +164,68 @@ class HttpUtilTest {
         assertEquals(errorResponse, response);
     }
 
+    @Test
+    void testGetURLDecodesGzipResponseAndCountsBytes() throws IOException, InterruptedException {
+        String expectedResponse = "{\"results\":[" + String.join(",", Collections.nCopies(100, "{\"name\":\"Dodoma\"}")) + "]}";
+        Buffer gzipped = new Buffer();
+        try (BufferedSink sink = Okio.buffer(new GzipSink(gzipped))) {
+            sink.writeUtf8(expectedResponse);
+        }
+        long wireBytes = gzipped.size();
+        mockWebServer.enqueue(new MockResponse()
+                .setBody(gzipped)
+                .setHeader("Content-Encoding", "gzip")
+                .setResponseCode(200));
+        SyncMetrics.reset();
+
+        String response = HttpUtil.getURL(mockWebServer.url("/gzip").toString(), "user", "pass", "test");
+
+        assertEquals(expectedResponse, response);
+        RecordedRequest request = mockWebServer.takeRequest();
+        assertEquals("gzip", request.getHeader("Accept-Encoding"));
+        assertEquals(wireBytes, SyncMetrics.get("test.bytes_received"));
+        assertEquals(expectedResponse.length(), SyncMetrics.get("test.bytes_decoded"));
+    }
+
+    @Test
+    void testOpenURLStreamsTheBody() throws Exception {
+        mockWebServer.enqueue(new MockResponse()
+                .setBody("{\"results\":[]}")
+                .setResponseCode(200));
+
+        try (Reader reader = HttpUtil.openURL(mockWebServer.url("/stream").toString(), "user", "pass", "test")) {
+            assertEquals("{\"results\":[]}", IOUtils.toString(reader));
+        }
+    }
+
+    @Test
+    void testOpenURLThrowsOnErrorStatus() {
+        mockWebServer.enqueue(new MockResponse()
+                .setBody("{\"error\":\"something went wrong\"}")
+                .setHeader("Retry-After", "3")
+                .setResponseCode(503));
+
+        HttpStatusException e = assertThrows(HttpStatusException.class,
+                () -> HttpUtil.openURL(mockWebServer.url("/error").toString(), "user", "pass", "test"));
+        assertEquals(503, e.getStatusCode());
+        assertEquals(3000, e.getRetryAfterMillis());
+    }
+
+    @Test
+    void testLargeRequestBodiesAreGzippedWhenEnabled() throws IOException {
+        int previous = HttpUtil.GZIP_REQUEST_MIN_BYTES;
+        try {
+            HttpUtil.GZIP_REQUEST_MIN_BYTES = 10;
+            assertEquals("gzip", HttpUtil.compressIfLarge(new StringEntity("{\"key\":\"a long enough value\"}")).getContentEncoding().getValue());
+            assertFalse(HttpUtil.compressIfLarge(new StringEntity("{}")) instanceof GzipCompressingEntity);
+
+            HttpUtil.GZIP_REQUEST_MIN_BYTES = 0;
+            assertFalse(HttpUtil.compressIfLarge(new StringEntity("{\"key\":\"a long enough value\"}")) instanceof GzipCompressingEntity);
+        } finally {
+            HttpUtil.GZIP_REQUEST_MIN_BYTES = previous;
+        }
+    }
+
     @Test
     void testPostWithoutAuth() {
         assertThrows(RuntimeException.class, () ->
@@ -0,0 +1,60 @@
+package tz.go.moh.ucs.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonStreamReaderTest {
+
+    @Test
+    void testStreamsArrayElementsAndReturnsEnvelope() {
+        String json = "{\"metaData\":{\"pageCount\":3,\"currentPage\":1},"
+                + "\"data\":[{\"Fac_IDNumber\":\"F1\"},{\"Fac_IDNumber\":\"F2\"}]}";
+        List<JSONObject> records = new ArrayList<>();
+
+        JSONObject envelope = JsonStreamReader.readObject(new StringReader(json), "data", records::add);
+
+        assertEquals(2, records.size());
+        assertEquals("F1", records.get(0).getString("Fac_IDNumber"));
+        assertEquals("F2", records.get(1).getString("Fac_IDNumber"));
+        assertEquals(3, envelope.getJSONObject("metaData").getInt("pageCount"));
+        assertFalse(envelope.has("data"));
+    }
+
+    @Test
+    void testEnvelopeMembersAfterTheArrayAreKept() {
+        String json = "{\"data\":[{\"name\":\"Quoted \\\"name\\\", with comma\"}],\"metaData\":{\"pageCount\":1}}";
+        List<JSONObject> records = new ArrayList<>();
+
+        JSONObject envelope = JsonStreamReader.readObject(new StringReader(json), "data", records::add);
+
+        assertEquals("Quoted \"name\", with comma", records.get(0).getString("name"));
+        assertEquals(1, envelope.getJSONObject("metaData").getInt("pageCount"));
+    }
+
+    @Test
+    void testEmptyAndNullArrays() {
+        List<JSONObject> records = new ArrayList<>();
+
+        JsonStreamReader.readObject(new StringReader("{\"data\":[]}"), "data", records::add);
+        JsonStreamReader.readObject(new StringReader("{\"data\":null}"), "data", records::add);
+        JSONObject envelope = JsonStreamReader.readObject(new StringReader("{}"), "data", records::add);
+
+        assertTrue(records.isEmpty());
+        assertTrue(envelope.isEmpty());
+    }
+
+    @Test
+    void testMalformedInputThrows() {
+        assertThrows(JSONException.class, () ->
+                JsonStreamReader.readObject(new StringReader("[1,2]"), "data", record -> { }));
+        assertThrows(JSONException.class, () ->
+                JsonStreamReader.readObject(new StringReader("{\"data\":[{\"a\":1} {\"a\":2}]}"), "data", record -> { }));
+    }
+}
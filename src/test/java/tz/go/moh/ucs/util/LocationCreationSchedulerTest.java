@@ -0,0 +1,168 @@
+package tz.go.moh.ucs.util;
+
+import org.junit.jupiter.api.Test;
+import tz.go.moh.ucs.domain.Location;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LocationCreationSchedulerTest {
+
+    /**
+     * Creates every location it is asked for, after an optional hook, and records the order and overlap of the calls.
+     */
+    private static class FakeScheduler extends LocationCreationScheduler {
+        final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        volatile Runnable hook = () -> { };
+
+        FakeScheduler(int concurrency) {
+            super(concurrency);
+        }
+
+        @Override
+        protected Location ensure(Location parent, String name, String code, String tag) {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                calls.add(code);
+                hook.run();
+                if ("FAIL".equals(code)) {
+                    return null;
+                }
+                return new Location(code.toLowerCase() + "-uuid", name, null, parent);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    void childrenAreReconciledWithTheirParent() {
+        FakeScheduler scheduler = new FakeScheduler(4);
+
+        CompletableFuture<Location> region = scheduler.schedule(null, "Dodoma", "R1", "Region");
+        CompletableFuture<Location> district = scheduler.schedule(region, "Bahi", "D1", "District");
+        scheduler.awaitAll();
+
+        assertSame(region.join(), district.join().getParentLocation());
+        assertEquals(2, scheduler.calls.size());
+    }
+
+    @Test
+    void siblingsUnderDifferentParentsRunInParallel() {
+        FakeScheduler scheduler = new FakeScheduler(2);
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        AtomicInteger timedOut = new AtomicInteger();
+        scheduler.hook = () -> {
+            bothStarted.countDown();
+            try {
+                if (!bothStarted.await(5, TimeUnit.SECONDS)) {
+                    timedOut.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        scheduler.schedule(null, "Ward A", "W1", "Ward");
+        scheduler.schedule(null, "Ward B", "W2", "Ward");
+        scheduler.awaitAll();
+
+        assertEquals(0, timedOut.get());
+        assertEquals(2, scheduler.maxRunning.get());
+    }
+
+    @Test
+    void callsForTheSameCodeRunOneAfterTheOther() {
+        FakeScheduler scheduler = new FakeScheduler(4);
+        scheduler.hook = () -> sleep(20);
+
+        for (int i = 0; i < 4; i++) {
+            scheduler.schedule(null, "Dodoma", "R1", "Region");
+        }
+        scheduler.awaitAll();
+
+        assertEquals(4, scheduler.calls.size());
+        assertEquals(1, scheduler.maxRunning.get());
+    }
+
+    @Test
+    void neverRunsMoreThanTheConcurrencyCap() {
+        FakeScheduler scheduler = new FakeScheduler(2);
+        scheduler.hook = () -> sleep(20);
+
+        for (int i = 0; i < 8; i++) {
+            scheduler.schedule(null, "Village " + i, "V" + i, "Village");
+        }
+        scheduler.awaitAll();
+
+        assertEquals(8, scheduler.calls.size());
+        assertTrue(scheduler.maxRunning.get() <= 2);
+    }
+
+    @Test
+    void awaitAllWaitsForCallsScheduledWhileWaiting() {
+        FakeScheduler scheduler = new FakeScheduler(2);
+        scheduler.hook = () -> {
+            if (scheduler.calls.size() == 1) {
+                sleep(20);
+                scheduler.schedule(null, "Bahi", "D1", "District");
+            }
+        };
+
+        scheduler.schedule(null, "Dodoma", "R1", "Region");
+        scheduler.awaitAll();
+
+        assertEquals(2, scheduler.calls.size());
+    }
+
+    @Test
+    void locationsWithoutCodeOrParentResolveToNull() {
+        FakeScheduler scheduler = new FakeScheduler(2);
+
+        assertNull(scheduler.schedule(null, "Nameless", "", "Village").join());
+        CompletableFuture<Location> failed = scheduler.schedule(null, "Broken", "FAIL", "Ward");
+        CompletableFuture<Location> child = scheduler.schedule(failed, "Orphan", "V9", "Village");
+        scheduler.awaitAll();
+
+        assertNull(failed.join());
+        assertNull(child.join().getParentLocation());
+    }
+
+    @Test
+    void onlyCallsThatThrowCountAsFailures() {
+        SyncMetrics.reset();
+        LocationCreationScheduler scheduler = new LocationCreationScheduler(2, (parent, name, code, tag) -> {
+            if ("THROW".equals(code)) {
+                throw new IllegalStateException("OpenMRS is down");
+            }
+            // Skipped on purpose, e.g. for lack of a parent
+            return null;
+        });
+
+        scheduler.schedule(null, "Skipped", "SKIP", "Ward");
+        scheduler.schedule(null, "Broken", "THROW", "Ward");
+        scheduler.awaitAll();
+
+        assertEquals(1, SyncMetrics.get("reconcile.failures"));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
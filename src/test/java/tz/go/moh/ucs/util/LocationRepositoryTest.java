@@ -0,0 +1,109 @@
+package tz.go.moh.ucs.util;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import tz.go.moh.ucs.domain.Location;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocationRepositoryTest {
+
+    private LocationRepository repository;
+    private Location ward;
+    private Location facility;
+
+    @BeforeEach
+    void setUp() {
+        repository = new LocationRepository();
+        ward = new Location("ward-uuid", "Ward", null, null).withTag("Ward").withAttribute("Code", "TZ.W1");
+        facility = new Location("facility-uuid", "Facility", null, ward).withTag("Facility").withAttribute("HFR Code", "123456-7");
+        repository.addAll(Arrays.asList(ward, facility));
+    }
+
+    @Test
+    void indexesLocationsByUuidCodeAndParent() {
+        assertSame(ward, repository.findByUuid("WARD-UUID"));
+        assertSame(ward, repository.findByCode("tz.w1"));
+        assertSame(facility, repository.findByCode("123456-7"));
+        assertTrue(repository.findChildren("ward-uuid").contains(facility));
+        assertTrue(repository.findChildren("facility-uuid").isEmpty());
+        assertNull(repository.findByCode(null));
+        assertEquals(Arrays.asList(ward, facility), repository.getAll());
+    }
+
+    @Test
+    void aCodeBelongsToTheFirstLocationRegisteredWithIt() {
+        Location duplicate = new Location("duplicate-uuid", "Ward Again", null, null).withTag("Ward").withAttribute("Code", "TZ.W1");
+
+        assertSame(ward, repository.add(duplicate));
+
+        assertSame(ward, repository.findByCode("TZ.W1"));
+        assertSame(duplicate, repository.findByUuid("duplicate-uuid"));
+        assertEquals(3, repository.size());
+
+        repository.putCode("TZ.W1", duplicate);
+        assertSame(duplicate, repository.findByCode("TZ.W1"));
+    }
+
+    @Test
+    void locationsWithDifferentTagsCanShareACode() {
+        Location village = new Location("village-uuid", "Village", null, ward).withTag("Village").withAttribute("Code", "TZ.W1");
+
+        assertSame(village, repository.add(village));
+
+        assertSame(ward, repository.findByCode("TZ.W1", "Ward"));
+        assertSame(village, repository.findByCode("tz.w1", "village"));
+        assertSame(ward, repository.findByCode("TZ.W1"));
+        assertNull(repository.findByCode("TZ.W1", "Hamlet"));
+        assertSame(facility, repository.findByCode("123456-7", "Facility"));
+    }
+
+    @Test
+    void reparentingMovesTheLocationBetweenParents() {
+        Location otherWard = new Location("other-ward-uuid", "Other Ward", null, null).withTag("Ward").withAttribute("Code", "TZ.W2");
+        repository.add(otherWard);
+
+        repository.reparent(facility, otherWard);
+
+        assertSame(otherWard, facility.getParentLocation());
+        assertTrue(repository.findChildren("ward-uuid").isEmpty());
+        assertTrue(repository.findChildren("other-ward-uuid").contains(facility));
+    }
+
+    @Test
+    void concurrentAddsRegisterEachCodeOnce() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Location>> holders = new ArrayList<>();
+        try {
+            for (int i = 0; i < 8; i++) {
+                Location village = new Location("village-uuid-" + i, "Village", null, ward).withTag("Village").withAttribute("Code", "TZ.V1");
+                holders.add(executor.submit(() -> {
+                    start.await();
+                    return repository.add(village);
+                }));
+            }
+            start.countDown();
+            List<Location> registered = new ArrayList<>();
+            for (Future<Location> holder : holders) {
+                registered.add(holder.get(10, TimeUnit.SECONDS));
+            }
+            for (Location holder : registered) {
+                assertSame(repository.findByCode("TZ.V1"), holder);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(10, repository.size());
+        assertEquals(9, repository.findChildren("ward-uuid").size());
+    }
+}
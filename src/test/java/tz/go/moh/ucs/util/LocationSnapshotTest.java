@@ -0,0 +1,81 @@
+package tz.go.moh.ucs.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tz.go.moh.ucs.domain.Location;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocationSnapshotTest {
+
+    private static final String SOURCE = "http://openmrs.example/openmrs/";
+
+    @TempDir
+    Path tempDir;
+
+    private static List<Location> locations() {
+        Location region = new Location("region-uuid", "Dodoma", null, null);
+        region.addTag("Region");
+        region.addAttribute("Code", "TZ.CN.DO");
+        region.setDateCreated(new Date(1000));
+        Location district = new Location("district-uuid", "Bahi", null, region);
+        district.addTag("District");
+        district.addAttribute("Code", "TZ.CN.DO.BA", "code-type-uuid", "code-attribute-uuid");
+        district.setDateCreated(new Date(2000));
+        district.setDateEdited(new Date(3000));
+        return Arrays.asList(region, district);
+    }
+
+    @Test
+    void savedLocationsLoadBack() throws IOException {
+        LocationSnapshot snapshot = new LocationSnapshot(tempDir.resolve("locations.json.gz"));
+        snapshot.save(locations(), SOURCE);
+
+        List<Location> loaded = snapshot.load(SOURCE);
+
+        assertEquals(2, loaded.size());
+        Location district = loaded.get(1);
+        assertEquals("district-uuid", district.getLocationId());
+        assertEquals("Bahi", district.getName());
+        assertTrue(district.hasTag("District"));
+        assertEquals("TZ.CN.DO.BA", district.getAttribute("Code"));
+        assertEquals("code-type-uuid", district.getAttributeTypeUuid("Code"));
+        assertEquals("code-attribute-uuid", district.getAttributeUuid("code-type-uuid"));
+        assertNull(loaded.get(0).getAttributeTypeUuid("Code"));
+        assertEquals("region-uuid", district.getParentLocation().getLocationId());
+        assertEquals(new Date(2000), district.getDateCreated());
+        assertEquals(new Date(3000), district.getDateEdited());
+        assertNull(loaded.get(0).getParentLocation());
+        assertNull(loaded.get(0).getDateEdited());
+    }
+
+    @Test
+    void missingSnapshotLoadsAsNull() throws IOException {
+        assertNull(new LocationSnapshot(tempDir.resolve("missing.json.gz")).load(SOURCE));
+    }
+
+    @Test
+    void snapshotOfAnotherOpenMrsIsRejected() throws IOException {
+        LocationSnapshot snapshot = new LocationSnapshot(tempDir.resolve("locations.json.gz"));
+        snapshot.save(locations(), SOURCE);
+
+        assertThrows(IOException.class, () -> snapshot.load("http://other.example/openmrs/"));
+    }
+
+    @Test
+    void truncatedSnapshotIsRejected() throws IOException {
+        Path file = tempDir.resolve("locations.json.gz");
+        new LocationSnapshot(file).save(locations(), SOURCE);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 12));
+
+        assertThrows(IOException.class, () -> new LocationSnapshot(file).load(SOURCE));
+    }
+}
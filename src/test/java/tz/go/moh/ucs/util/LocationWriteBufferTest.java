@@ -0,0 +1,103 @@
+package tz.go.moh.ucs.util;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.MockedStatic;
+import tz.go.moh.ucs.Main;
+import tz.go.moh.ucs.domain.Location;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.times;
+
+class LocationWriteBufferTest {
+
+    private LocationRepository repository;
+    private Location village;
+    private Location ward;
+
+    @BeforeEach
+    void setUp() {
+        SyncMetrics.reset();
+        Main.CODE_LOCATION_ATTRIBUTE_UUID = "code-uuid";
+        Main.HFR_CODE_LOCATION_ATTRIBUTE_UUID = "hfr-code-uuid";
+        ward = new Location("ward-uuid", "Ward", null, null);
+        repository = new LocationRepository();
+        repository.addAll(Collections.singletonList(ward));
+        village = new Location("village-uuid", "Old Name", null, null);
+    }
+
+    @Test
+    void mergesAllChangesToALocationIntoOneRequest() {
+        try (MockedStatic<OpenMrsCallsUtils> openMrs = mockStatic(OpenMrsCallsUtils.class)) {
+            ArgumentCaptor<JSONObject> changes = ArgumentCaptor.forClass(JSONObject.class);
+            openMrs.when(() -> OpenMrsCallsUtils.postLocationUpdate(any(), any())).thenReturn(200);
+
+            LocationWriteBuffer writes = new LocationWriteBuffer(repository);
+            writes.rename(village, "New Name");
+            writes.reparent(village, "ward-uuid");
+            writes.addAttribute(village, "code-uuid", "TZ.V1");
+
+            assertEquals(200, writes.flush());
+
+            openMrs.verify(() -> OpenMrsCallsUtils.postLocationUpdate(any(), changes.capture()), times(1));
+            assertEquals("New Name", changes.getValue().getString("name"));
+            assertEquals("ward-uuid", changes.getValue().getJSONObject("parentLocation").getString("uuid"));
+            assertEquals("TZ.V1", changes.getValue().getJSONArray("attributes").getJSONObject(0).getString("value"));
+            assertEquals(1, SyncMetrics.get("openmrs.location_updates"));
+            assertEquals(3, SyncMetrics.get("openmrs.location_update_changes"));
+        }
+
+        assertEquals("New Name", village.getName());
+        assertSame(ward, village.getParentLocation());
+        assertTrue(repository.findChildren("ward-uuid").contains(village));
+        assertEquals("TZ.V1", village.getAttribute("Code"));
+        assertSame(village, repository.findByCode("TZ.V1"));
+    }
+
+    @Test
+    void updatesAKnownAttributeInPlace() {
+        village.addAttribute("Code", "TZ.OLD", "code-uuid", "code-attribute-uuid");
+        try (MockedStatic<OpenMrsCallsUtils> openMrs = mockStatic(OpenMrsCallsUtils.class)) {
+            ArgumentCaptor<JSONObject> changes = ArgumentCaptor.forClass(JSONObject.class);
+            openMrs.when(() -> OpenMrsCallsUtils.postLocationUpdate(any(), any())).thenReturn(200);
+
+            LocationWriteBuffer writes = new LocationWriteBuffer(repository);
+            writes.addAttribute(village, "code-uuid", "TZ.V1");
+            writes.flush();
+
+            openMrs.verify(() -> OpenMrsCallsUtils.postLocationUpdate(any(), changes.capture()));
+            assertEquals("code-attribute-uuid", changes.getValue().getJSONArray("attributes").getJSONObject(0).getString("uuid"));
+        }
+    }
+
+    @Test
+    void leavesTheLocationUnchangedWhenTheWriteFails() {
+        try (MockedStatic<OpenMrsCallsUtils> openMrs = mockStatic(OpenMrsCallsUtils.class)) {
+            openMrs.when(() -> OpenMrsCallsUtils.postLocationUpdate(any(), any())).thenReturn(-1);
+
+            LocationWriteBuffer writes = new LocationWriteBuffer(repository);
+            writes.rename(village, "New Name");
+
+            assertEquals(-1, writes.flush());
+            assertTrue(writes.isEmpty());
+        }
+
+        assertEquals("Old Name", village.getName());
+    }
+
+    @Test
+    void flushingAnEmptyBufferSendsNothing() {
+        try (MockedStatic<OpenMrsCallsUtils> openMrs = mockStatic(OpenMrsCallsUtils.class)) {
+            assertEquals(0, new LocationWriteBuffer(repository).flush());
+            openMrs.verifyNoInteractions();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package tz.go.moh.ucs.util;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tz.go.moh.ucs.Main;
+import tz.go.moh.ucs.domain.Location;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MutationJournalTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path file;
+
+    @BeforeEach
+    void setUp() {
+        SyncMetrics.reset();
+        Main.CODE_LOCATION_ATTRIBUTE_UUID = "code-uuid";
+        Main.HFR_CODE_LOCATION_ATTRIBUTE_UUID = "hfr-code-uuid";
+        file = tempDir.resolve("journal.log");
+    }
+
+    private MutationJournal journal(int syncBatch) {
+        return new MutationJournal(file, true, syncBatch, 60000);
+    }
+
+    private static List<Location> snapshot() {
+        List<Location> locations = new ArrayList<>();
+        locations.add(new Location("ward-uuid", "Ward", null, null).withTag("Ward").withAttribute("Code", "TZ.W1"));
+        locations.add(new Location("village-uuid", "Old Village", null, null).withTag("Village").withAttribute("Code", "TZ.V1"));
+        return locations;
+    }
+
+    @Test
+    void replaysSucceededWritesOntoTheSnapshot() {
+        MutationJournal before = journal(1);
+        long create = before.intendCreate("Hamlet", "village-uuid", Collections.singleton("Hamlet"), Collections.singletonMap("code-uuid", "TZ.H1"));
+        before.succeeded(create, "hamlet-uuid", null);
+        long rename = before.intendUpdate("village-uuid", new JSONObject().put("name", "New Village")
+                .put("parentLocation", new JSONObject().put("uuid", "ward-uuid")));
+        before.succeeded(rename, "village-uuid", null);
+        long failed = before.intendUpdate("ward-uuid", new JSONObject().put("name", "Never"));
+        before.failed(failed);
+
+        List<Location> locations = journal(1).replay(snapshot());
+
+        assertEquals(3, locations.size());
+        Location hamlet = locations.get(2);
+        assertEquals("hamlet-uuid", hamlet.getLocationId());
+        assertEquals("Hamlet", hamlet.getName());
+        assertTrue(hamlet.hasTag("Hamlet"));
+        assertEquals("TZ.H1", hamlet.getAttribute("Code"));
+        assertEquals("village-uuid", hamlet.getParentLocation().getLocationId());
+        assertEquals("New Village", locations.get(1).getName());
+        assertEquals("ward-uuid", locations.get(1).getParentLocation().getLocationId());
+        assertEquals("Ward", locations.get(0).getName());
+        assertEquals(2, SyncMetrics.get("openmrs.journal.replayed"));
+    }
+
+    @Test
+    void writesWithoutOutcomeAndTornRecordsAreNotReplayed() throws IOException {
+        MutationJournal before = journal(1);
+        before.intendCreate("Hamlet", "village-uuid", Collections.singleton("Hamlet"), Collections.singletonMap("code-uuid", "TZ.H1"));
+        Files.write(file, "{\"seq\":0,\"done\":\"ham".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        List<Location> locations = journal(1).replay(snapshot());
+
+        assertEquals(2, locations.size());
+        assertEquals(1, SyncMetrics.get("openmrs.journal.in_doubt"));
+    }
+
+    @Test
+    void replayedWriteIsTheLastChangeOnlyUntilTheServerResponded() {
+        // The server's clock, far from the local one; only the server's times are compared
+        long respondedAt = 1714546800000L;
+        MutationJournal before = journal(1);
+        before.succeeded(before.intendUpdate("village-uuid", new JSONObject().put("name", "New Village")), "village-uuid", new Date(respondedAt));
+
+        MutationJournal after = journal(1);
+        after.replay(snapshot());
+
+        assertTrue(after.isReplayedWrite("VILLAGE-UUID", new Date(respondedAt - 60000)));
+        // The Date header has whole seconds, the change was made within that second
+        assertTrue(after.isReplayedWrite("village-uuid", new Date(respondedAt + 999)));
+        assertFalse(after.isReplayedWrite("village-uuid", new Date(respondedAt + 1000)));
+        assertFalse(after.isReplayedWrite("ward-uuid", new Date(0)));
+    }
+
+    @Test
+    void replayedWriteWithoutServerTimeIsNotRecognised() {
+        MutationJournal before = journal(1);
+        before.succeeded(before.intendUpdate("village-uuid", new JSONObject().put("name", "New Village")), "village-uuid", null);
+
+        MutationJournal after = journal(1);
+        List<Location> locations = after.replay(snapshot());
+
+        assertEquals("New Village", locations.get(1).getName());
+        assertFalse(after.isReplayedWrite("village-uuid", new Date(0)));
+    }
+
+    @Test
+    void syncsInBatches() {
+        MutationJournal journal = journal(4);
+        for (int i = 0; i < 4; i++) {
+            journal.succeeded(journal.intendUpdate("village-uuid", new JSONObject().put("name", "Name " + i)), "village-uuid", null);
+        }
+
+        assertEquals(8, SyncMetrics.get("openmrs.journal.records"));
+        assertEquals(2, SyncMetrics.get("openmrs.journal.syncs"));
+    }
+
+    @Test
+    void numbersNewRecordsAfterTheOnesInTheFile() throws IOException {
+        MutationJournal before = journal(1);
+        before.intendUpdate("village-uuid", new JSONObject().put("name", "First"));
+
+        long next = journal(1).intendUpdate("ward-uuid", new JSONObject().put("name", "Second"));
+
+        assertEquals(1, next);
+        assertEquals(2, Files.readAllLines(file).size());
+    }
+
+    @Test
+    void resetEmptiesTheJournal() {
+        MutationJournal journal = journal(1);
+        journal.succeeded(journal.intendUpdate("village-uuid", new JSONObject().put("name", "New Village")), "village-uuid", null);
+
+        journal.reset();
+
+        assertFalse(Files.exists(file));
+        assertEquals(2, journal(1).replay(snapshot()).size());
+        assertEquals("Old Village", journal(1).replay(snapshot()).get(1).getName());
+    }
+
+    @Test
+    void disabledJournalRecordsNothing() {
+        MutationJournal journal = new MutationJournal(file, false, 1, 0);
+
+        assertEquals(-1, journal.intendCreate("Hamlet", null, null, null));
+        journal.succeeded(-1, "hamlet-uuid", null);
+
+        assertFalse(Files.exists(file));
+    }
+}
@@ -3,13 +3,21 @@ package tz.go.moh.ucs.util;
 import org.json.JSONObject;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.MockedStatic;
+import tz.go.moh.ucs.Main;
 import tz.go.moh.ucs.domain.Location;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.when;
 
 class OpenMrsCallsUtilsTest {
@@ -37,10 +45,35 @@ class OpenMrsCallsUtilsTest {
 
         OpenMrsCallsUtils.getOtherLocation("123", "parentUuid", hfrLocation);
 
-        // Since we don't control the global allLocations, this just ensures method runs without error
+        // Since we don't control the global repository, this just ensures method runs without error
         assertTrue(true);
     }
 
+    @Test
+    void testGetOtherLocationVisitsOnlyTheChildrenOfTheLocation() {
+        Location ward = new Location("children-ward-uuid", "Ward", null, null);
+        Location village = new Location("children-village-uuid", "Old Village", null, ward);
+        village.addAttribute("Code", "VILLAGE123");
+        village.addTag("Village");
+        LocationRepository repository = Main.repository;
+        Main.repository = new LocationRepository();
+        Main.repository.addAll(Arrays.asList(ward, village));
+        JSONObject hfrLocation = new JSONObject();
+        hfrLocation.put("Village_Code", "VILLAGE123");
+        hfrLocation.put("village", "New Village");
+
+        try (MockedStatic<OpenMrsCallsUtils> openMrs = mockStatic(OpenMrsCallsUtils.class, CALLS_REAL_METHODS)) {
+            openMrs.when(() -> OpenMrsCallsUtils.postLocationUpdate(any(), any())).thenReturn(200);
+
+            OpenMrsCallsUtils.getOtherLocation("children-ward-uuid", "parentUuid", hfrLocation);
+
+            openMrs.verify(() -> OpenMrsCallsUtils.postLocationUpdate(same(village), any()), times(1));
+        } finally {
+            Main.repository = repository;
+        }
+        assertEquals("New Village", village.getName());
+    }
+
     @Test
     void testUpdateOrCreateLocationAttributeAddsAttribute() {
         OpenMrsCallsUtils.updateOrCreateLocationAttribute(mockLocation, "uuid-code", "NEWCODE");
@@ -54,6 +87,22 @@ class OpenMrsCallsUtilsTest {
         assertNull(result); // Since no real HTTP response, we expect null
     }
 
+    @Test
+    void testGetLocationAttributeUuidUsesTheDownloadedUuid() {
+        SyncMetrics.reset();
+        Location location = new Location("downloaded-uuid", "Village", null, null);
+        location.addAttribute("Code", "TZ.V1", "code-type-uuid", "code-attribute-uuid");
+        LocationRepository repository = Main.repository;
+        Main.repository = new LocationRepository();
+        Main.repository.addAll(Collections.singletonList(location));
+        try {
+            assertEquals("code-attribute-uuid", OpenMrsCallsUtils.getLocationAttributeUuid("downloaded-uuid", "code-type-uuid"));
+            assertEquals(0, SyncMetrics.get("openmrs.attribute_uuid_fetches"));
+        } finally {
+            Main.repository = repository;
+        }
+    }
+
     @Test
     void testUpdateLocationAttributeHandlesFailure() {
         OpenMrsCallsUtils.updateLocationAttribute("fake-uuid", "fake-attr-uuid", "attrType", "newValue");
@@ -73,9 +122,9 @@ class OpenMrsCallsUtilsTest {
     }
 
     @Test
-    void testCreateConnectionInvalidUrlThrowsException() {
+    void testNewRequestInvalidUrlThrowsException() {
         assertThrows(Exception.class, () -> {
-            OpenMrsCallsUtils.createConnection("::bad-url::", "GET");
+            OpenMrsCallsUtils.newRequest("::bad-url::", "GET", null);
         });
     }
 
@@ -0,0 +1,116 @@
+package tz.go.moh.ucs.util;
+
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import tz.go.moh.ucs.service.OpenmrsService;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class OpenMrsSessionTest {
+
+    private MockWebServer server;
+    private String baseUrl;
+    private String user;
+    private String password;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        SyncMetrics.reset();
+        server = new MockWebServer();
+        server.start();
+        baseUrl = OpenmrsService.OPENMRS_BASE_URL;
+        user = OpenmrsService.OPENMRS_USER;
+        password = OpenmrsService.OPENMRS_PWD;
+        OpenmrsService.OPENMRS_BASE_URL = server.url("/openmrs/").toString();
+        OpenmrsService.OPENMRS_USER = "admin";
+        OpenmrsService.OPENMRS_PWD = "secret";
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        OpenmrsService.OPENMRS_BASE_URL = baseUrl;
+        OpenmrsService.OPENMRS_USER = user;
+        OpenmrsService.OPENMRS_PWD = password;
+        server.shutdown();
+    }
+
+    @Test
+    void logsInOnceAndSendsTheSessionCookie() throws Exception {
+        server.enqueue(session("abc"));
+        server.enqueue(new MockResponse().setBody("{}"));
+        server.enqueue(new MockResponse().setBody("{}"));
+        OpenMrsSession session = new OpenMrsSession(true);
+
+        get(session, "/openmrs/ws/rest/v1/location/1");
+        get(session, "/openmrs/ws/rest/v1/location/2");
+
+        RecordedRequest login = server.takeRequest();
+        assertEquals("/openmrs/ws/rest/v1/session", login.getPath());
+        assertNotNull(login.getHeader("Authorization"));
+        for (int i = 0; i < 2; i++) {
+            RecordedRequest request = server.takeRequest();
+            assertEquals("JSESSIONID=abc", request.getHeader("Cookie"));
+            assertNull(request.getHeader("Authorization"));
+        }
+        assertEquals(1, SyncMetrics.get("openmrs.session.logins"));
+    }
+
+    @Test
+    void logsInAgainAndRepeatsTheRequestOn401() throws Exception {
+        server.enqueue(session("abc"));
+        server.enqueue(new MockResponse().setResponseCode(401));
+        server.enqueue(session("def"));
+        server.enqueue(new MockResponse().setBody("{}"));
+        OpenMrsSession session = new OpenMrsSession(true);
+
+        assertEquals(200, get(session, "/openmrs/ws/rest/v1/location/1"));
+
+        server.takeRequest();
+        assertEquals("JSESSIONID=abc", server.takeRequest().getHeader("Cookie"));
+        assertEquals("/openmrs/ws/rest/v1/session", server.takeRequest().getPath());
+        assertEquals("JSESSIONID=def", server.takeRequest().getHeader("Cookie"));
+        assertEquals(2, SyncMetrics.get("openmrs.session.logins"));
+    }
+
+    @Test
+    void failsWhenOpenMrsRejectsTheCredentials() {
+        server.enqueue(new MockResponse().setBody("{\"authenticated\":false}"));
+        OpenMrsSession session = new OpenMrsSession(true);
+
+        assertThrows(IOException.class, () -> get(session, "/openmrs/ws/rest/v1/location/1"));
+    }
+
+    @Test
+    void sendsBasicCredentialsWhenDisabled() throws Exception {
+        server.enqueue(new MockResponse().setBody("{}"));
+        OpenMrsSession session = new OpenMrsSession(false);
+
+        get(session, "/openmrs/ws/rest/v1/location/1");
+
+        RecordedRequest request = server.takeRequest();
+        assertEquals("/openmrs/ws/rest/v1/location/1", request.getPath());
+        assertNotNull(request.getHeader("Authorization"));
+        assertNull(request.getHeader("Cookie"));
+    }
+
+    private int get(OpenMrsSession session, String path) throws IOException {
+        try (Response response = session.execute(HttpTransport.request(server.url(path).toString(), "openmrs").build())) {
+            return response.code();
+        }
+    }
+
+    private static MockResponse session(String id) {
+        return new MockResponse().addHeader("Set-Cookie", "JSESSIONID=" + id + "; Path=/openmrs; HttpOnly")
+                .setBody("{\"authenticated\":true,\"sessionId\":\"" + id + "\"}");
+    }
+}
@@ -0,0 +1,51 @@
+package tz.go.moh.ucs.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PageCheckpointTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void nextPageReturnsRequestedPageWhenNothingIsRecorded() {
+        PageCheckpoint checkpoint = new PageCheckpoint(tempDir.resolve("checkpoint.properties"));
+        assertEquals(1, checkpoint.nextPage("feed", 1));
+    }
+
+    @Test
+    void nextPageResumesAfterLastCompletedPage() {
+        PageCheckpoint checkpoint = new PageCheckpoint(tempDir.resolve("checkpoint.properties"));
+        checkpoint.markCompleted("feed", 179);
+
+        assertEquals(180, checkpoint.nextPage("feed", 1));
+        // Other feeds are tracked independently
+        assertEquals(1, checkpoint.nextPage("other", 1));
+        // A caller asking for a later page is not sent backwards
+        assertEquals(190, checkpoint.nextPage("feed", 190));
+    }
+
+    @Test
+    void progressSurvivesARestart() {
+        Path file = tempDir.resolve("checkpoint.properties");
+        new PageCheckpoint(file).markCompleted("feed", 42);
+
+        assertEquals(43, new PageCheckpoint(file).nextPage("feed", 1));
+    }
+
+    @Test
+    void clearStartsTheFeedFromTheBeginningAgain() {
+        Path file = tempDir.resolve("checkpoint.properties");
+        PageCheckpoint checkpoint = new PageCheckpoint(file);
+        checkpoint.markCompleted("feed", 42);
+        checkpoint.clear("feed");
+
+        assertEquals(1, checkpoint.nextPage("feed", 1));
+        assertEquals(1, new PageCheckpoint(file).nextPage("feed", 1));
+    }
+}
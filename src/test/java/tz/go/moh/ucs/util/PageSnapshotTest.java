@@ -0,0 +1,46 @@
+package tz.go.moh.ucs.util;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PageSnapshotTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void committedPagesCanBeReadBack() throws IOException {
+        PageSnapshot snapshot = new PageSnapshot(tempDir);
+        String body = "{\"metaData\":{\"pageCount\":1,\"currentPage\":1},\"data\":[]}";
+        try (OutputStream out = snapshot.openForWrite("feed", 1)) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        snapshot.commit("feed", 1);
+
+        try (InputStream in = snapshot.openForRead("feed", 1)) {
+            assertEquals(body, IOUtils.toString(in, StandardCharsets.UTF_8));
+        }
+        assertTrue(Files.exists(tempDir.resolve("feed").resolve("page-1.json.gz")));
+    }
+
+    @Test
+    void uncommittedPagesAreNotVisible() throws IOException {
+        PageSnapshot snapshot = new PageSnapshot(tempDir);
+        try (OutputStream out = snapshot.openForWrite("feed", 2)) {
+            out.write("{\"data\":[".getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertThrows(FileNotFoundException.class, () -> snapshot.openForRead("feed", 2));
+    }
+}
@@ -0,0 +1,56 @@
+package tz.go.moh.ucs.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tz.go.moh.ucs.util.PageValidatorStore.Validators;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PageValidatorStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void getReturnsNullForUnknownPage() {
+        PageValidatorStore store = new PageValidatorStore(tempDir.resolve("validators.properties"));
+        assertNull(store.get("feed", 1));
+    }
+
+    @Test
+    void validatorsSurviveARestart() {
+        Path file = tempDir.resolve("validators.properties");
+        new PageValidatorStore(file).put("feed", 3, new Validators("\"etag-3\"", "Tue, 01 Jul 2025 10:00:00 GMT", "abc123", 12));
+
+        Validators validators = new PageValidatorStore(file).get("feed", 3);
+        assertNotNull(validators);
+        assertEquals("\"etag-3\"", validators.getEtag());
+        assertEquals("Tue, 01 Jul 2025 10:00:00 GMT", validators.getLastModified());
+        assertEquals("abc123", validators.getSha256());
+        assertEquals(12, validators.getPageCount());
+        assertNull(new PageValidatorStore(file).get("other", 3));
+    }
+
+    @Test
+    void headersMissingFromANewerResponseAreForgotten() {
+        PageValidatorStore store = new PageValidatorStore(tempDir.resolve("validators.properties"));
+        store.put("feed", 1, new Validators("\"etag-1\"", null, "abc", 2));
+        store.put("feed", 1, new Validators(null, null, "def", 2));
+
+        assertNull(store.get("feed", 1).getEtag());
+        assertEquals("def", store.get("feed", 1).getSha256());
+    }
+
+    @Test
+    void clearForgetsEverything() {
+        Path file = tempDir.resolve("validators.properties");
+        PageValidatorStore store = new PageValidatorStore(file);
+        store.put("feed", 1, new Validators(null, null, "abc", 2));
+        store.clear();
+
+        assertNull(store.get("feed", 1));
+        assertNull(new PageValidatorStore(file).get("feed", 1));
+    }
+}
@@ -0,0 +1,118 @@
+package tz.go.moh.ucs.util;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.MockedStatic;
+import tz.go.moh.ucs.Main;
+import tz.go.moh.ucs.domain.Location;
+import tz.go.moh.ucs.domain.LocationOperation;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+
+class PlanExecutorTest {
+
+    private LocationRepository repository;
+    private Location ward;
+    private Location village;
+
+    @BeforeEach
+    void setUp() {
+        SyncMetrics.reset();
+        Main.CODE_LOCATION_ATTRIBUTE_UUID = "code-uuid";
+        Main.HFR_CODE_LOCATION_ATTRIBUTE_UUID = "hfr-code-uuid";
+        ward = new Location("ward-uuid", "Ward", null, null).withTag("Ward").withAttribute("Code", "TZ.W1");
+        village = new Location("village-uuid", "Old Village", null, ward).withTag("Village").withAttribute("Code", "TZ.V1");
+        repository = new LocationRepository();
+        repository.addAll(Arrays.asList(ward, village));
+    }
+
+    private static Location created(String uuid, String name, String code) {
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("Code", code);
+        return new Location(uuid, name, null, null, null, null, attributes);
+    }
+
+    @Test
+    void appliesOperationsInOrderResolvingPlannedParentsByCode() {
+        ReconciliationPlan plan = new ReconciliationPlan();
+        Location plannedHamlet = new Location(null, "Hamlet", null, null).withTag("Hamlet").withAttribute("Code", "TZ.H1");
+        plan.add(LocationOperation.create("TZ.H1", "Hamlet", "Hamlet", village));
+        plan.add(LocationOperation.create("TZ.S1", "Hamlet", "Sub Hamlet", plannedHamlet));
+        plan.add(LocationOperation.update(village, "TZ.V1", "Village", "New Village", null));
+
+        try (MockedStatic<Main> main = mockStatic(Main.class);
+             MockedStatic<OpenMrsCallsUtils> openMrs = mockStatic(OpenMrsCallsUtils.class)) {
+            main.when(() -> Main.createNewLocation(eq("Hamlet"), eq("village-uuid"), anySet(), anyMap())).thenReturn(created("hamlet-uuid", "Hamlet", "TZ.H1").withTag("Hamlet"));
+            main.when(() -> Main.createNewLocation(eq("Sub Hamlet"), eq("hamlet-uuid"), anySet(), anyMap())).thenReturn(created("sub-uuid", "Sub Hamlet", "TZ.S1"));
+            openMrs.when(() -> OpenMrsCallsUtils.postLocationUpdate(any(), any())).thenReturn(200);
+
+            assertEquals(3, new PlanExecutor(repository).execute(plan));
+
+            main.verify(() -> Main.createNewLocation(eq("Sub Hamlet"), eq("hamlet-uuid"), anySet(), anyMap()), times(1));
+            openMrs.verify(() -> OpenMrsCallsUtils.postLocationUpdate(eq(village), any()), times(1));
+        }
+        assertEquals("New Village", village.getName());
+        assertEquals(3, SyncMetrics.get("plan.applied"));
+    }
+
+    @Test
+    void resolvesAPlannedParentByItsTagWhenAnotherLocationSharesItsCode() {
+        ReconciliationPlan plan = new ReconciliationPlan();
+        // The new village has the same code as the ward it is created under
+        Location plannedVillage = new Location(null, "Village Two", null, null).withTag("Village").withAttribute("Code", "TZ.W1");
+        plan.add(LocationOperation.create("TZ.W1", "Village", "Village Two", ward));
+        plan.add(LocationOperation.create("TZ.H1", "Hamlet", "Hamlet", plannedVillage));
+
+        try (MockedStatic<Main> main = mockStatic(Main.class)) {
+            Location createdVillage = created("village-two-uuid", "Village Two", "TZ.W1").withTag("Village");
+            main.when(() -> Main.createNewLocation(eq("Village Two"), eq("ward-uuid"), anySet(), anyMap())).thenReturn(createdVillage);
+            main.when(() -> Main.createNewLocation(eq("Hamlet"), eq("village-two-uuid"), anySet(), anyMap())).thenReturn(created("hamlet-uuid", "Hamlet", "TZ.H1"));
+
+            assertEquals(2, new PlanExecutor(repository).execute(plan));
+
+            main.verify(() -> Main.createNewLocation(eq("Hamlet"), eq("village-two-uuid"), anySet(), anyMap()), times(1));
+        }
+    }
+
+    @Test
+    void neverResolvesAPlannedParentByItsCodeAlone() {
+        ReconciliationPlan plan = new ReconciliationPlan();
+        // A parent recorded without a tag could be any location with the code, here the ward
+        plan.add(new LocationOperation(LocationOperation.Type.CREATE, "TZ.H1", "Hamlet", "Hamlet", null, null, "TZ.W1", null));
+
+        try (MockedStatic<Main> main = mockStatic(Main.class)) {
+            assertEquals(0, new PlanExecutor(repository).execute(plan));
+
+            main.verify(() -> Main.createNewLocation(any(), any(), any(), any()), never());
+        }
+        assertEquals(1, SyncMetrics.get("plan.skipped"));
+    }
+
+    @Test
+    void skipsOperationsThatNoLongerFit() {
+        ReconciliationPlan plan = new ReconciliationPlan();
+        // Created by someone else since the plan was made
+        plan.add(LocationOperation.create("TZ.V1", "Village", "Old Village", ward));
+        // Parent that was never created
+        plan.add(LocationOperation.create("TZ.S1", "Hamlet", "Sub Hamlet", new Location(null, "Gone", null, null).withAttribute("Code", "TZ.H9")));
+        // Location removed since the plan was made
+        plan.add(LocationOperation.update(new Location("deleted-uuid", "Deleted", null, null), "TZ.D1", "Village", "Renamed", null));
+
+        try (MockedStatic<Main> main = mockStatic(Main.class);
+             MockedStatic<OpenMrsCallsUtils> openMrs = mockStatic(OpenMrsCallsUtils.class)) {
+            assertEquals(0, new PlanExecutor(repository).execute(plan));
+
+            main.verify(() -> Main.createNewLocation(any(), any(), any(), any()), never());
+            openMrs.verifyNoInteractions();
+        }
+        assertEquals(3, SyncMetrics.get("plan.skipped"));
+    }
+}
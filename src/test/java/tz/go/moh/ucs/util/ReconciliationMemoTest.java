@@ -0,0 +1,80 @@
+package tz.go.moh.ucs.util;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import tz.go.moh.ucs.domain.Location;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReconciliationMemoTest {
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private final Location ward = new Location("ward-uuid", "Ward", null, null);
+
+    @BeforeEach
+    void setUp() {
+        SyncMetrics.reset();
+        calls.set(0);
+    }
+
+    private Location reconcile(Location parent, String name, String code, String tag) {
+        calls.incrementAndGet();
+        return new Location("uuid-" + calls.get(), name, null, parent);
+    }
+
+    @Test
+    void answersRepeatedCallsFromTheMemo() throws Exception {
+        ReconciliationMemo memo = new ReconciliationMemo(this::reconcile);
+
+        Location first = memo.reconcile(ward, "Village", "TZ.V1", "Village");
+        Location second = memo.reconcile(ward, "Village ", "tz.v1", "Village");
+
+        assertSame(first, second);
+        assertEquals(1, calls.get());
+        assertEquals(1, memo.size());
+        assertEquals(1, SyncMetrics.get("reconcile.memo.hits"));
+        assertEquals(1, SyncMetrics.get("reconcile.memo.misses"));
+    }
+
+    @Test
+    void reconcilesAgainWithAnotherNameTagOrParent() throws Exception {
+        ReconciliationMemo memo = new ReconciliationMemo(this::reconcile);
+
+        memo.reconcile(ward, "Village", "TZ.V1", "Village");
+        memo.reconcile(ward, "Renamed Village", "TZ.V1", "Village");
+        memo.reconcile(ward, "Village", "TZ.V1", "Hamlet");
+        memo.reconcile(new Location("other-ward-uuid", "Other Ward", null, null), "Village", "TZ.V1", "Village");
+        memo.reconcile(null, "Village", "TZ.V1", "Village");
+
+        assertEquals(5, calls.get());
+        assertEquals(0, SyncMetrics.get("reconcile.memo.hits"));
+    }
+
+    @Test
+    void doesNotRememberLocationsThatCouldNotBeReconciled() throws Exception {
+        ReconciliationMemo memo = new ReconciliationMemo((parent, name, code, tag) -> {
+            calls.incrementAndGet();
+            return null;
+        });
+
+        assertNull(memo.reconcile(ward, "Village", "TZ.V1", "Village"));
+        assertNull(memo.reconcile(ward, "Village", "TZ.V1", "Village"));
+
+        assertEquals(2, calls.get());
+        assertEquals(0, memo.size());
+    }
+
+    @Test
+    void passesChildrenOfAPlannedParentThrough() throws Exception {
+        ReconciliationMemo memo = new ReconciliationMemo(this::reconcile);
+        Location plannedWard = new Location(null, "Planned Ward", null, null);
+
+        memo.reconcile(plannedWard, "Village", "TZ.V1", "Village");
+        memo.reconcile(plannedWard, "Village", "TZ.V1", "Village");
+
+        assertEquals(2, calls.get());
+        assertEquals(0, memo.size());
+    }
+}
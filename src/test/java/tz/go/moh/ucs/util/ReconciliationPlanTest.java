@@ -0,0 +1,84 @@
+package tz.go.moh.ucs.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tz.go.moh.ucs.domain.Location;
+import tz.go.moh.ucs.domain.LocationOperation;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReconciliationPlanTest {
+
+    private static final String SOURCE = "http://openmrs.example/openmrs/";
+
+    @TempDir
+    Path tempDir;
+
+    private static ReconciliationPlan plan() {
+        Location region = new Location("region-uuid", "Dodoma", null, null).withAttribute("Code", "TZ.R1");
+        Location ward = new Location("ward-uuid", "Old Ward", null, null).withAttribute("Code", "TZ.W1");
+        Location plannedVillage = new Location(null, "Village", null, null).withTag("Village").withAttribute("Code", "TZ.V1");
+
+        ReconciliationPlan plan = new ReconciliationPlan();
+        plan.add(LocationOperation.create("TZ.V1", "Village", "Village", ward));
+        plan.add(LocationOperation.create("TZ.H1", "Hamlet", "Hamlet", plannedVillage));
+        plan.add(LocationOperation.update(ward, "TZ.W1", "Ward", "New Ward", null));
+        plan.add(LocationOperation.update(ward, "TZ.W1", "Ward", null, region));
+        return plan;
+    }
+
+    @Test
+    void countsCreatesRenamesAndReparents() {
+        ReconciliationPlan plan = plan();
+
+        assertEquals(2, plan.getCreates());
+        assertEquals(1, plan.getRenames());
+        assertEquals(1, plan.getReparents());
+        assertEquals("2 creates, 1 renames, 1 re-parents", plan.summary());
+    }
+
+    @Test
+    void savedPlanLoadsBackInOrder() throws IOException {
+        Path file = tempDir.resolve("plan.json");
+        plan().save(file, SOURCE);
+
+        ReconciliationPlan loaded = ReconciliationPlan.load(file, SOURCE);
+
+        assertEquals(4, loaded.size());
+        LocationOperation village = loaded.getOperations().get(0);
+        assertEquals(LocationOperation.Type.CREATE, village.getType());
+        assertEquals("ward-uuid", village.getParentUuid());
+        assertEquals("TZ.W1", village.getParentCode());
+        LocationOperation hamlet = loaded.getOperations().get(1);
+        assertNull(hamlet.getParentUuid());
+        assertEquals("TZ.V1", hamlet.getParentCode());
+        assertEquals("Village", hamlet.getParentTag());
+        LocationOperation rename = loaded.getOperations().get(2);
+        assertEquals("ward-uuid", rename.getLocationUuid());
+        assertEquals("New Ward", rename.getName());
+        assertFalse(rename.isReparent());
+        assertEquals(loaded.summary(), plan().summary());
+    }
+
+    @Test
+    void planOfAnotherOpenMrsIsRefused() throws IOException {
+        Path file = tempDir.resolve("plan.json");
+        plan().save(file, SOURCE);
+
+        assertThrows(IOException.class, () -> ReconciliationPlan.load(file, "http://other.example/openmrs/"));
+    }
+
+    @Test
+    void truncatedPlanIsRefused() throws IOException {
+        Path file = tempDir.resolve("plan.json");
+        plan().save(file, SOURCE);
+        String json = new String(Files.readAllBytes(file), "UTF-8");
+        Files.write(file, json.substring(0, json.length() / 2).getBytes("UTF-8"));
+
+        assertThrows(IOException.class, () -> ReconciliationPlan.load(file, SOURCE));
+    }
+}
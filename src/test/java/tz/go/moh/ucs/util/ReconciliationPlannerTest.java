@@ -0,0 +1,85 @@
+package tz.go.moh.ucs.util;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.MockedStatic;
+import tz.go.moh.ucs.Main;
+import tz.go.moh.ucs.domain.Location;
+import tz.go.moh.ucs.domain.LocationOperation;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mockStatic;
+
+class ReconciliationPlannerTest {
+
+    private LocationRepository repository;
+    private Location ward;
+    private Location village;
+
+    @BeforeEach
+    void setUp() {
+        ward = new Location("ward-uuid", "Ward", null, null).withTag("Ward").withAttribute("Code", "TZ.W1");
+        village = new Location("village-uuid", "Old Village", null, ward).withTag("Village").withAttribute("Code", "TZ.V1");
+        repository = new LocationRepository();
+        repository.addAll(Arrays.asList(ward, village));
+    }
+
+    @Test
+    void plansWritesWithoutMakingThem() throws Exception {
+        ReconciliationPlanner planner = new ReconciliationPlanner(repository);
+        try (MockedStatic<OpenMrsCallsUtils> openMrs = mockStatic(OpenMrsCallsUtils.class);
+             MockedStatic<Main> main = mockStatic(Main.class)) {
+            Location plannedWard = planner.reconcile(null, "Ward", "TZ.W1", "Ward");
+            Location plannedVillage = planner.reconcile(plannedWard, "New Village", "TZ.V1", "Village");
+            Location hamlet = planner.reconcile(plannedVillage, "Hamlet", "TZ.H1", "Hamlet");
+            planner.reconcile(hamlet, "Sub Hamlet", "TZ.S1", "Hamlet");
+
+            openMrs.verifyNoInteractions();
+            main.verifyNoInteractions();
+        }
+
+        List<LocationOperation> operations = planner.getPlan().getOperations();
+        assertEquals(3, operations.size());
+        assertTrue(operations.get(0).isRename());
+        assertEquals("village-uuid", operations.get(0).getLocationUuid());
+        assertTrue(operations.get(1).isCreate());
+        assertEquals("village-uuid", operations.get(1).getParentUuid());
+        // The sub hamlet's parent does not exist yet and is referred to by code
+        assertNull(operations.get(2).getParentUuid());
+        assertEquals("TZ.H1", operations.get(2).getParentCode());
+        // The downloaded location is left as it is
+        assertEquals("Old Village", village.getName());
+    }
+
+    @Test
+    void plansEachLocationOnce() {
+        ReconciliationPlanner planner = new ReconciliationPlanner(repository);
+
+        Location first = planner.reconcile(ward, "Hamlet", "TZ.H1", "Hamlet");
+        Location second = planner.reconcile(ward, "Hamlet", "TZ.H1", "Hamlet");
+        planner.reconcile(village, "New Village", "TZ.V1", "Village");
+        planner.reconcile(village, "New Village", "TZ.V1", "Village");
+
+        assertSame(first, second);
+        assertEquals(1, planner.getPlan().getCreates());
+        assertEquals(1, planner.getPlan().getRenames());
+        assertEquals(2, planner.getPlan().size());
+    }
+
+    @Test
+    void plansAMoveUnderAPlannedParent() {
+        ReconciliationPlanner planner = new ReconciliationPlanner(repository);
+
+        Location newWard = planner.reconcile(ward, "Other Ward", "TZ.W2", "Ward");
+        planner.reconcile(newWard, "Old Village", "TZ.V1", "Village");
+
+        LocationOperation move = planner.getPlan().getOperations().get(1);
+        assertTrue(move.isReparent());
+        assertFalse(move.isRename());
+        assertEquals("TZ.W2", move.getParentCode());
+        assertEquals(1, planner.getPlan().getReparents());
+    }
+}
@@ -0,0 +1,111 @@
+package tz.go.moh.ucs.util;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetryPolicyTest {
+
+    private final List<Long> sleeps = new ArrayList<>();
+
+    @BeforeEach
+    void resetMetrics() {
+        SyncMetrics.reset();
+    }
+
+    private RetryPolicy policy(int maxAttempts, CircuitBreaker breaker) {
+        return new RetryPolicy("test", maxAttempts, 100, 1000, breaker) {
+            @Override
+            protected void sleep(long millis) {
+                sleeps.add(millis);
+            }
+        };
+    }
+
+    @Test
+    void retriesUntilTheAttemptSucceeds() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        policy(5, new CircuitBreaker("test", 10, 1000)).execute(attempt -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new Exception("boom");
+            }
+        });
+
+        assertEquals(3, calls.get());
+        assertEquals(2, sleeps.size());
+        assertEquals(3, SyncMetrics.get("test.attempts"));
+        assertEquals(2, SyncMetrics.get("test.failures"));
+    }
+
+    @Test
+    void backoffIsJitteredWithinAnExponentiallyGrowingCappedBound() {
+        RetryPolicy policy = policy(10, new CircuitBreaker("test", 10, 1000));
+        Exception failure = new Exception("boom");
+        for (int i = 0; i < 50; i++) {
+            assertTrue(policy.delayBeforeRetry(1, failure) <= 100);
+            assertTrue(policy.delayBeforeRetry(3, failure) <= 400);
+            assertTrue(policy.delayBeforeRetry(20, failure) <= 1000);
+        }
+    }
+
+    @Test
+    void retryAfterIsHonouredWhenLongerThanTheBackoff() {
+        RetryPolicy policy = policy(10, new CircuitBreaker("test", 10, 1000));
+        assertEquals(5000, policy.delayBeforeRetry(1, new HttpStatusException("throttled", 429, 5000)));
+    }
+
+    @Test
+    void rethrowsTheLastFailureWhenAttemptsAreExhausted() {
+        Exception thrown = assertThrows(Exception.class, () -> policy(3, new CircuitBreaker("test", 10, 1000))
+                .execute(attempt -> {
+                    throw new Exception("attempt " + attempt);
+                }));
+
+        assertEquals("attempt 3", thrown.getMessage());
+        assertEquals(2, sleeps.size());
+    }
+
+    @Test
+    void nonRetryableStatusIsNotRetried() {
+        AtomicInteger calls = new AtomicInteger();
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 1000);
+        HttpStatusException thrown = assertThrows(HttpStatusException.class, () -> policy(5, breaker).execute(attempt -> {
+            calls.incrementAndGet();
+            throw new HttpStatusException("unauthorized", 401, -1);
+        }));
+
+        assertEquals(401, thrown.getStatusCode());
+        assertEquals(1, calls.get());
+        // A rejected request says nothing about the health of the server
+        assertFalse(breaker.isOpen());
+    }
+
+    @Test
+    void stopsOnceTheCircuitBreakerOpens() {
+        AtomicInteger calls = new AtomicInteger();
+        CircuitBreaker breaker = new CircuitBreaker("test", 2, 60000);
+        CircuitBreaker.OpenException opened = assertThrows(CircuitBreaker.OpenException.class, () -> policy(10, breaker).execute(attempt -> {
+            calls.incrementAndGet();
+            throw new HttpStatusException("unavailable", 503, -1);
+        }));
+
+        assertEquals(2, calls.get());
+        assertEquals(503, ((HttpStatusException) opened.getCause()).getStatusCode());
+        assertTrue(breaker.isOpen());
+        assertThrows(CircuitBreaker.OpenException.class, () -> policy(10, breaker).execute(attempt -> calls.incrementAndGet()));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void parseRetryAfterAcceptsSecondsAndDates() {
+        assertEquals(120000, RetryPolicy.parseRetryAfter("120"));
+        assertEquals(0, RetryPolicy.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+        assertEquals(-1, RetryPolicy.parseRetryAfter(null));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("soon"));
+    }
+}
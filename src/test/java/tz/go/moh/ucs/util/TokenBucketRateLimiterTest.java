@@ -0,0 +1,78 @@
+package tz.go.moh.ucs.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketRateLimiterTest {
+
+    private long now;
+    private final List<Long> sleeps = new ArrayList<>();
+
+    private TokenBucketRateLimiter limiter(double requestsPerSecond, int burst, double minRequestsPerSecond) {
+        return new TokenBucketRateLimiter("test", requestsPerSecond, burst, minRequestsPerSecond) {
+            @Override
+            protected long nanoTime() {
+                return now;
+            }
+
+            @Override
+            protected void sleep(long nanos) {
+                sleeps.add(nanos);
+                now += nanos;
+            }
+        };
+    }
+
+    @Test
+    void burstIsServedWithoutWaiting() throws InterruptedException {
+        TokenBucketRateLimiter limiter = limiter(10, 3, 1);
+        limiter.acquire();
+        limiter.acquire();
+        limiter.acquire();
+
+        assertTrue(sleeps.isEmpty());
+    }
+
+    @Test
+    void requestsBeyondTheBurstArePacedAtTheRate() throws InterruptedException {
+        TokenBucketRateLimiter limiter = limiter(10, 1, 1);
+        limiter.acquire();
+        limiter.acquire();
+        limiter.acquire();
+
+        assertEquals(2, sleeps.size());
+        assertEquals(100_000_000L, sleeps.get(0));
+        assertEquals(100_000_000L, sleeps.get(1));
+    }
+
+    @Test
+    void throttlingHalvesTheRateDownToTheMinimumAndSuccessRestoresIt() {
+        TokenBucketRateLimiter limiter = limiter(8, 1, 1);
+        limiter.onThrottled();
+        assertEquals(4, limiter.getRequestsPerSecond(), 0.0001);
+        limiter.onThrottled();
+        limiter.onThrottled();
+        limiter.onThrottled();
+        assertEquals(1, limiter.getRequestsPerSecond(), 0.0001);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.onSuccess();
+        }
+        assertEquals(8, limiter.getRequestsPerSecond(), 0.0001);
+    }
+
+    @Test
+    void zeroRateDisablesLimiting() throws InterruptedException {
+        TokenBucketRateLimiter limiter = limiter(0, 1, 1);
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire();
+        }
+        limiter.onThrottled();
+
+        assertTrue(sleeps.isEmpty());
+    }
+}
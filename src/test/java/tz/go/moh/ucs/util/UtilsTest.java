@@ -6,8 +6,10 @@ import org.mockito.MockedStatic;
 import tz.go.moh.ucs.Main;
 import tz.go.moh.ucs.domain.Location;
 import tz.go.moh.ucs.domain.LocationCSVRow;
+import tz.go.moh.ucs.domain.LocationOperation;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -72,13 +74,17 @@ class UtilsTest {
 
         try (MockedStatic<Utils> mockedUtils = mockStatic(Utils.class, CALLS_REAL_METHODS);
              MockedStatic<OpenMrsCallsUtils> mockOpenMrs = mockStatic(OpenMrsCallsUtils.class)) {
-            mockedUtils.when(() -> Utils.findLocationByCode("CODE123")).thenReturn(mockExistingLocation);
+            mockedUtils.when(() -> Utils.findLocationByCode("CODE123", "Village")).thenReturn(mockExistingLocation);
 
             Location result = Utils.ensureLocationExists(mockParentLocation, "New Name", "CODE123", "Village");
 
             verify(mockExistingLocation).getName();
-            mockOpenMrs.verify(() -> OpenMrsCallsUtils.updateLocationName(mockExistingLocation, "New Name"));
-            mockOpenMrs.verify(() -> OpenMrsCallsUtils.updateChildLocationParent(mockExistingLocation, "parent-uuid"));
+            // The new name and the new parent are written in a single request
+            mockOpenMrs.verify(() -> OpenMrsCallsUtils.postLocationUpdate(eq(mockExistingLocation), argThat(changes ->
+                    "New Name".equals(changes.optString("name"))
+                            && "parent-uuid".equals(changes.getJSONObject("parentLocation").getString("uuid")))), times(1));
+            mockOpenMrs.verify(() -> OpenMrsCallsUtils.updateLocationName(any(), any()), never());
+            mockOpenMrs.verify(() -> OpenMrsCallsUtils.updateChildLocationParent(any(), any()), never());
             assertEquals(mockExistingLocation, result);
         }
     }
@@ -89,7 +95,7 @@ class UtilsTest {
         try (MockedStatic<Utils> mockUtils = mockStatic(Utils.class, CALLS_REAL_METHODS);
              MockedStatic<Main> mockMain = mockStatic(Main.class)) {
             // Simulate that no existing location is found
-            mockUtils.when(() -> Utils.findLocationByCode("NEWCODE")).thenReturn(null);
+            mockUtils.when(() -> Utils.findLocationByCode("NEWCODE", "Village")).thenReturn(null);
 
             // Set up expected new location details
             Location expectedNewLocation = new Location();
@@ -143,7 +149,7 @@ class UtilsTest {
 
             Location villageLoc = new Location();
             villageLoc.setLocationId("village-uuid");
-            mockUtils.when(() -> Utils.findLocationByCode("V123")).thenReturn(villageLoc);
+            mockUtils.when(() -> Utils.findLocationByCode("V123", "Village")).thenReturn(villageLoc);
             mockUtils.when(() -> Utils.ensureLocationExists(any(), any(), any(), eq("Hamlet")))
                     .thenReturn(new Location());
 
@@ -152,4 +158,55 @@ class UtilsTest {
             mockReader.verify(() -> CSVReaderUtil.readCsvFromResources("test.csv"), times(1));
         }
     }
+
+    @Test
+    void testEnsureLocationExistsTellsLocationsSharingACodeApartByTag() throws Exception {
+        Location ward = new Location("shared-ward-uuid", "Shared", null, null).withTag("Ward").withAttribute("Code", "TZ.SHARED");
+        Location village = new Location("shared-village-uuid", "Shared Village", null, ward).withTag("Village").withAttribute("Code", "TZ.SHARED");
+        LocationRepository repository = Main.repository;
+        Main.repository = new LocationRepository();
+        Main.repository.addAll(Arrays.asList(ward, village));
+
+        try (MockedStatic<OpenMrsCallsUtils> mockOpenMrs = mockStatic(OpenMrsCallsUtils.class);
+             MockedStatic<Main> mockMain = mockStatic(Main.class)) {
+            assertSame(ward, Utils.ensureLocationExists(null, "Shared", "TZ.SHARED", "Ward"));
+            assertSame(village, Utils.ensureLocationExists(ward, "Shared Village", "TZ.SHARED", "Village"));
+
+            mockOpenMrs.verifyNoInteractions();
+            mockMain.verify(() -> Main.createNewLocation(any(), any(), any(), any()), never());
+        } finally {
+            Main.repository = repository;
+        }
+    }
+
+    @Test
+    void testApplyLocationOperationReturnsTheLocationThatAlreadyHoldsTheCode() throws Exception {
+        Location ward = new Location("ward-uuid", "Ward", null, null).withTag("Ward").withAttribute("Code", "TZ.W1");
+        Location village = new Location("village-uuid", "Village", null, ward).withTag("Village").withAttribute("Code", "TZ.V1");
+        LocationRepository repository = new LocationRepository();
+        repository.addAll(Arrays.asList(ward, village));
+        Location duplicate = new Location("duplicate-uuid", "Village", null, ward).withTag("Village").withAttribute("Code", "TZ.V1");
+        SyncMetrics.reset();
+
+        try (MockedStatic<Main> mockMain = mockStatic(Main.class)) {
+            mockMain.when(() -> Main.createNewLocation(anyString(), anyString(), anySet(), anyMap())).thenReturn(duplicate);
+
+            Location result = Utils.applyLocationOperation(LocationOperation.create("TZ.V1", "Village", "Village", ward), null, ward, repository);
+
+            assertSame(village, result);
+        }
+        assertSame(village, repository.findByCode("TZ.V1", "Village"));
+        assertEquals(1, SyncMetrics.get("reconcile.duplicates"));
+    }
+
+    @Test
+    void testIsSameLocationComparesByReferenceThenUuid() {
+        Location location = new Location("uuid-1", "One", null, null);
+
+        assertTrue(Utils.isSameLocation(location, location));
+        assertTrue(Utils.isSameLocation(location, new Location("UUID-1", "Stub", null, null)));
+        assertFalse(Utils.isSameLocation(location, new Location("uuid-2", "Two", null, null)));
+        assertFalse(Utils.isSameLocation(location, null));
+        assertTrue(Utils.isSameLocation(null, null));
+    }
 }